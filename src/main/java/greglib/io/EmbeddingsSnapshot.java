@@ -0,0 +1,194 @@
+package greglib.io;
+
+import greglib.vectors.Embeddings;
+import greglib.vectors.MappedVectorStorage;
+import greglib.vectors.VectorStorage;
+import greglib.vectors.Vocabulary;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Writes and opens Embeddings in a purpose-built binary snapshot format, as a fast alternative to Java serialization.
+ * Opening a snapshot maps the file and uses the vectors in place, so startup time doesn't depend on the vector count.
+ *
+ * FORMAT (all little-endian):
+ *      header (64 bytes):  8-byte magic "GREGEMB\0", int version, int dimensionality, int number of terms,
+ *                          int flags (reserved), long vocabulary offset, long frequency offset, long matrix offset,
+ *                          long file length, 8 bytes reserved
+ *      vocabulary block:   the front-coded table written by Vocabulary.write, loaded as is without a String per term
+ *      frequency block:    int[n] frequency of each row (-1 if unknown)
+ *      matrix:             float[n * dimensionality] row-major, starting on a 64-byte boundary
+ *
+ * Version 1 files, whose vocabulary block is int[n+1] byte offset of each term in the string data (in sorted order),
+ * int[n] row of each sorted term, int[n] sorted position of each row, then the UTF-8 bytes of all terms sorted by
+ * unsigned byte order, can still be opened.
+ */
+public class EmbeddingsSnapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(EmbeddingsSnapshot.class.getName());
+
+    private static final byte[] MAGIC = "GREGEMB\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 64;
+    private static final int ALIGNMENT = 64;
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Write embeddings to a snapshot file
+     * @param embeddings the embeddings to write
+     * @param filename the file to create (overwritten if it exists)
+     * @throws IOException
+     */
+    public static void write(Embeddings embeddings, String filename) throws IOException {
+        LOGGER.info("Writing embeddings snapshot to " + filename + "...");
+        int n = embeddings.size();
+        int dim = embeddings.dimensionality();
+        Vocabulary vocabulary = embeddings.getVocabulary();
+
+        long vocabOffset = HEADER_BYTES;
+        long frequencyOffset = vocabOffset + vocabulary.serializedBytes();
+        long matrixOffset = align(frequencyOffset + 4L * n);
+        long fileLength = matrixOffset + 4L * n * dim;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(dim);
+            buffer.putInt(n);
+            buffer.putInt(0);
+            buffer.putLong(vocabOffset);
+            buffer.putLong(frequencyOffset);
+            buffer.putLong(matrixOffset);
+            buffer.putLong(fileLength);
+            buffer.putLong(0);
+            buffer = drain(channel, buffer);
+
+            vocabulary.write(channel);
+            for (int i = 0; i < n; i++) {
+                buffer = putInt(channel, buffer, embeddings.getFrequency(i));
+            }
+            for (long pos = frequencyOffset + 4L * n; pos < matrixOffset; pos++) {
+                if (!buffer.hasRemaining()) buffer = drain(channel, buffer);
+                buffer.put((byte) 0);
+            }
+            VectorStorage storage = embeddings.getStorage();
+            float[] vector = new float[dim];
+            for (int i = 0; i < n; i++) {
+                storage.copyRow(i, vector, 0);
+                for (float x : vector) {
+                    if (buffer.remaining() < 4) buffer = drain(channel, buffer);
+                    buffer.putFloat(x);
+                }
+            }
+            drain(channel, buffer);
+        }
+        LOGGER.info("Wrote " + n + " terms with " + dim + " dimensions");
+    }
+
+    /**
+     * Open a snapshot file by mapping it. Vectors are read from the mapped file as they are used.
+     * @param filename the snapshot file
+     * @return Embeddings backed by the file
+     * @throws IOException if the file is not a valid snapshot
+     */
+    public static Embeddings open(String filename) throws IOException {
+        LOGGER.info("Opening embeddings snapshot " + filename + "...");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer[] regions;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) throw new IOException(filename + " is too short to be a snapshot");
+            }
+            ((Buffer) header).flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(filename + " is not an embeddings snapshot");
+            int version = header.getInt();
+            if (version != VERSION && version != 1) throw new IOException("Unsupported snapshot version " + version);
+            if (channel.size() != header.getLong(48)) {
+                throw new IOException("Snapshot " + filename + " is truncated or corrupt");
+            }
+            regions = MappedVectorStorage.mapRegions(channel, header.getInt(12) * 4);
+        }
+        int dim = header.getInt(12);
+        int n = header.getInt(16);
+        long vocabOffset = header.getLong(24);
+        long frequencyOffset = header.getLong(32);
+        long matrixOffset = header.getLong(40);
+
+        // the vocabulary and frequencies are read from the mapped file, so they must fit in the first region
+        ByteBuffer first = regions[0];
+        if (matrixOffset > first.limit()) throw new IOException("Snapshot vocabulary is too large");
+        Vocabulary vocabulary;
+        if (header.getInt(8) == 1) {
+            vocabulary = Vocabulary.of(readTerms(first, (int) vocabOffset, n));
+        } else {
+            ByteBuffer block = first.duplicate();
+            ((Buffer) block).position((int) vocabOffset);
+            vocabulary = Vocabulary.read(block);
+            if (vocabulary.size() != n || block.position() != frequencyOffset) {
+                throw new IOException("Snapshot " + filename + " is corrupt");
+            }
+        }
+
+        Embeddings embeddings = new Embeddings(vocabulary, new MappedVectorStorage(regions, dim, matrixOffset, n));
+        for (int row = 0; row < n; row++) {
+            embeddings.setFrequency(row, first.getInt((int) frequencyOffset + 4 * row));
+        }
+        LOGGER.info("Opened " + n + " terms with " + dim + " dimensions");
+        return embeddings;
+    }
+
+    /**
+     * Read the terms of a version 1 vocabulary block, in row order
+     */
+    private static List<String> readTerms(ByteBuffer first, int vocabOffset, int n) {
+        int offsetsStart = vocabOffset;
+        int rowToSortedStart = offsetsStart + 4 * (2 * n + 1);
+        int stringsStart = offsetsStart + 4 * (3 * n + 1);
+        byte[] bytes = new byte[64];
+        ByteBuffer strings = first.duplicate();
+        List<String> terms = new ArrayList<>(n);
+        for (int row = 0; row < n; row++) {
+            int sortedIndex = first.getInt(rowToSortedStart + 4 * row);
+            int start = first.getInt(offsetsStart + 4 * sortedIndex);
+            int length = first.getInt(offsetsStart + 4 * (sortedIndex + 1)) - start;
+            if (length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            ((Buffer) strings).position(stringsStart + start);
+            strings.get(bytes, 0, length);
+            terms.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return terms;
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static ByteBuffer putInt(FileChannel channel, ByteBuffer buffer, int value) throws IOException {
+        if (buffer.remaining() < 4) buffer = drain(channel, buffer);
+        return buffer.putInt(value);
+    }
+
+    private static ByteBuffer drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+        return buffer;
+    }
+}
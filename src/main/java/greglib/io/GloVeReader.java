@@ -1,14 +1,27 @@
 package greglib.io;
 
+import greglib.util.Threading;
+import greglib.vectors.ArrayVectorStorage;
 import greglib.vectors.Embeddings;
-import greglib.vectors.WordEmbedding;
+import greglib.vectors.LazyVectorStorage;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Reads a greglib.vectors file as output by GloVe
@@ -19,10 +32,15 @@ public class GloVeReader {
     // Whether or not to add in the context vector as given in the bin file
     public static boolean addContextVector = true;
 
+    // rows per task (and per mapped block of the file)
+    private static final int BLOCK_ROWS = 1 << 14;
+
     /**
      * Reads vectors from a GloVe bin file
      * MAKES ASSUMPTIONS:   bias term appears after vector;
      *                      W and W~ are both written to file
+     * Blocks of rows are mapped and converted in parallel: each word's W and W~ rows are summed in double precision
+     * straight into a preallocated float matrix, then normalized. Repeated words keep their first vector.
      * @param binFile
      * @param vocabFile
      * @return
@@ -32,40 +50,200 @@ public class GloVeReader {
 
         System.out.println("Reading GloVe greglib.vectors from file " + binFile + "...");
 
-        BufferedReader vocabReader = new BufferedReader(new FileReader(vocabFile));
         List<String> vocab = new ArrayList<>();
         List<Integer> frequencies = new ArrayList<>();
-        String line;
-        while((line = vocabReader.readLine()) != null) {
-            String[] fields = line.split(" ");
-            vocab.add(fields[0]);
-            frequencies.add(Integer.parseInt(fields[1]));
+        readVocabFile(vocabFile, vocab, frequencies);
+        int nWords = vocab.size();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(binFile), StandardOpenOption.READ)) {
+            int dim = dimensionality(channel, nWords, binFile);
+
+            // only the first row of a repeated word is kept
+            List<String> words = new ArrayList<>(nWords);
+            int[] rows = firstRows(vocab, words);
+            ArrayVectorStorage storage = new ArrayVectorStorage(dim, words.size());
+            for (int i = 0; i < words.size(); i++) {
+                storage.allocate();
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int begin = 0; begin < nWords; begin += BLOCK_ROWS) {
+                int first = begin;
+                int last = Math.min(nWords, begin + BLOCK_ROWS);
+                tasks.add(() -> {
+                    convert(channel, first, last, nWords, dim, rows, storage);
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> future : Threading.getPool().invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) throw (IOException) cause;
+                }
+                throw new RuntimeException(e.getCause());
+            }
+
+            Embeddings embeddings = new Embeddings(words, storage);
+            for (int i = 0; i < nWords; i++) {
+                if (rows[i] >= 0) embeddings.setFrequency(rows[i], frequencies.get(i));
+            }
+            System.out.println("read " + words.size() + " greglib.embeddings with " + dim + " dimensions");
+            return embeddings;
         }
+    }
+
+    /**
+     * Open a GloVe bin file for on-demand reading (see readBinFile for the assumptions made about the file).
+     * Only the vocabulary is read up front; each word's W and W~ rows are read, summed and normalized the first time
+     * it is used, and kept in a least-recently-used cache of at most cacheBytes. The storage is a LazyVectorStorage,
+     * which reports cache statistics and keeps the file open until it is closed.
+     * @param binFile
+     * @param vocabFile
+     * @param cacheBytes roughly how much heap cached vectors may take up
+     * @return
+     * @throws IOException
+     */
+    public static Embeddings openBinFile(String binFile, String vocabFile, long cacheBytes) throws IOException {
+        List<String> vocab = new ArrayList<>();
+        List<Integer> frequencies = new ArrayList<>();
+        readVocabFile(vocabFile, vocab, frequencies);
         int nWords = vocab.size();
 
-        // determine dimensionality by looking at input file: binfilesize_in_bytes = 8 * (dimensionality+1)*2
-        //      bias term is written after each vector (the +1), and two sets of greglib.vectors are written (the *2)
-        long nBytes = Paths.get(binFile).toFile().length();
-        int dim = (int) (nBytes / 8 / 2 / nWords - 1);
-
-        Embeddings embeddings = new Embeddings(dim);
-        InputStream binReader = new FileInputStream(binFile);
-        for(int i=0; i<nWords*2; i++) {
-            byte[] bytes = new byte[dim*8+8];
-            binReader.read(bytes);
-            float[] vector = new float[dim];
-            for(int j=0; j<dim; j++) {
-                vector[j] = (float) ByteBuffer.wrap(bytes, j * 8, 8).order(ByteOrder.LITTLE_ENDIAN).getDouble();
+        FileChannel channel = FileChannel.open(Paths.get(binFile), StandardOpenOption.READ);
+        int dim;
+        try {
+            dim = dimensionality(channel, nWords, binFile);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        List<String> words = new ArrayList<>(nWords);
+        int[] rows = firstRows(vocab, words);
+        // file row of each kept word
+        int[] fileRows = new int[words.size()];
+        for (int i = 0; i < nWords; i++) {
+            if (rows[i] >= 0) fileRows[rows[i]] = i;
+        }
+        boolean addContext = addContextVector;
+        long rowBytes = 8L * (dim + 1);
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(
+                () -> ByteBuffer.allocate((int) rowBytes).order(ByteOrder.LITTLE_ENDIAN));
+        LazyVectorStorage.RowReader reader = new LazyVectorStorage.RowReader() {
+            @Override
+            public void read(int row, float[] dest) throws IOException {
+                ByteBuffer buffer = buffers.get();
+                long fileRow = fileRows[row];
+                double[] sum = new double[dim];
+                LazyVectorStorage.readFully(channel, buffer, fileRow * rowBytes).asDoubleBuffer().get(sum);
+                if (addContext) {
+                    DoubleBuffer context = LazyVectorStorage.readFully(channel, buffer, (nWords + fileRow) * rowBytes)
+                            .asDoubleBuffer();
+                    for (int j = 0; j < dim; j++) {
+                        sum[j] += context.get(j);
+                    }
+                }
+                double squaredNorm = 0;
+                for (int j = 0; j < dim; j++) {
+                    dest[j] = (float) sum[j];
+                    squaredNorm += (double) dest[j] * dest[j];
+                }
+                double mag = Math.sqrt(squaredNorm);
+                if (mag > 0) {
+                    for (int j = 0; j < dim; j++) {
+                        dest[j] /= mag;
+                    }
+                }
             }
-            if(i < nWords) {
-                embeddings.addWordAndEmbedding(vocab.get(i), new WordEmbedding(vector));
-                embeddings.setWordFrequency(vocab.get(i), frequencies.get(i));
-            } else {
-                embeddings.get(vocab.get(i-nWords)).add(new WordEmbedding(vector));
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
             }
+        };
+        Embeddings embeddings = new Embeddings(words, new LazyVectorStorage(dim, words.size(), reader, cacheBytes));
+        for (int i = 0; i < nWords; i++) {
+            if (rows[i] >= 0) embeddings.setFrequency(rows[i], frequencies.get(i));
         }
-        embeddings.normalizeAll();
-        System.out.println("read " + nWords + " greglib.embeddings with " + dim + " dimensions");
+        System.out.println("opened " + words.size() + " greglib.embeddings with " + dim + " dimensions");
         return embeddings;
     }
+
+    private static void readVocabFile(String vocabFile, List<String> vocab, List<Integer> frequencies)
+            throws IOException {
+        try (BufferedReader vocabReader = Files.newBufferedReader(Paths.get(vocabFile), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = vocabReader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) throw new IOException("No count for \"" + line + "\" in " + vocabFile);
+                int end = line.indexOf(' ', space + 1);
+                vocab.add(line.substring(0, space));
+                frequencies.add(Integer.parseInt(line.substring(space + 1, end < 0 ? line.length() : end)));
+            }
+        }
+    }
+
+    /**
+     * Determine dimensionality by looking at input file: binfilesize_in_bytes = 8 * (dimensionality+1)*2
+     *      bias term is written after each vector (the +1), and two sets of greglib.vectors are written (the *2)
+     */
+    private static int dimensionality(FileChannel channel, int nWords, String binFile) throws IOException {
+        long nBytes = channel.size();
+        int dim = nWords == 0 ? 0 : (int) (nBytes / 8 / 2 / nWords - 1);
+        if (dim <= 0) throw new IOException(binFile + " is too small for " + nWords + " words");
+        return dim;
+    }
+
+    /**
+     * Find the storage row of every vocabulary entry, or -1 for a repeat of an earlier word
+     * @param words filled with the words that are kept
+     */
+    private static int[] firstRows(List<String> vocab, List<String> words) {
+        Set<String> seen = new HashSet<>(vocab.size() * 4 / 3 + 1);
+        int[] rows = new int[vocab.size()];
+        for (int i = 0; i < vocab.size(); i++) {
+            rows[i] = seen.add(vocab.get(i)) ? words.size() : -1;
+            if (rows[i] >= 0) words.add(vocab.get(i));
+        }
+        return rows;
+    }
+
+    /**
+     * Map the W and W~ rows for a block of words, and write their normalized sums into the storage
+     */
+    private static void convert(FileChannel channel, int first, int last, int nWords, int dim, int[] rows,
+                                ArrayVectorStorage storage) throws IOException {
+        long rowBytes = 8L * (dim + 1);
+        DoubleBuffer words = channel.map(FileChannel.MapMode.READ_ONLY, first * rowBytes, (last - first) * rowBytes)
+                .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        DoubleBuffer contexts = addContextVector
+                ? channel.map(FileChannel.MapMode.READ_ONLY, (nWords + first) * rowBytes, (last - first) * rowBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer()
+                : null;
+        double[] word = new double[dim + 1];
+        double[] context = new double[dim + 1];
+        float[] vector = new float[dim];
+        for (int i = first; i < last; i++) {
+            words.get(word);
+            if (contexts != null) contexts.get(context);
+            if (rows[i] < 0) continue;
+            double squaredNorm = 0;
+            for (int j = 0; j < dim; j++) {
+                vector[j] = (float) (contexts != null ? word[j] + context[j] : word[j]);
+                squaredNorm += (double) vector[j] * vector[j];
+            }
+            double mag = Math.sqrt(squaredNorm);
+            if (mag > 0) {
+                for (int j = 0; j < dim; j++) {
+                    vector[j] /= mag;
+                }
+            }
+            FloatBuffer row = storage.getBuffer(rows[i]);
+            row.put(vector);
+        }
+    }
 }
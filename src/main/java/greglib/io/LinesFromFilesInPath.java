@@ -5,8 +5,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
@@ -21,22 +23,32 @@ public class LinesFromFilesInPath implements Iterator<String> {
     String nextLine;
 
     public LinesFromFilesInPath(Path path) throws IOException {
-        fileQueue = new LinkedList<>();
-        addFilesFromDir(path.toFile());
+        fileQueue = new LinkedList<>(listFiles(path));
 
         System.out.println(fileQueue);
 
         loadNextFile();
     }
 
-    private void addFilesFromDir(File dir) {
+    /**
+     * List the files this class would read lines from, for callers that want to split them up (e.g. across threads)
+     * @param path a directory to search recursively (hidden files and directories are skipped)
+     * @return all files found
+     */
+    public static List<File> listFiles(Path path) {
+        List<File> files = new ArrayList<>();
+        addFilesFromDir(path.toFile(), files);
+        return files;
+    }
+
+    private static void addFilesFromDir(File dir, List<File> fileList) {
         File[] files = dir.listFiles();
         for(File file : files) {
             if(file.getName().startsWith(".")) continue;
             if(file.isDirectory()) {
-                addFilesFromDir(file);
+                addFilesFromDir(file, fileList);
             } else {
-                fileQueue.add(file);
+                fileList.add(file);
             }
         }
     }
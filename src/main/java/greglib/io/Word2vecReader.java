@@ -1,13 +1,21 @@
 package greglib.io;
 
+import greglib.util.Threading;
+import greglib.vectors.ArrayVectorStorage;
 import greglib.vectors.Embeddings;
-import greglib.vectors.WordEmbedding;
+import greglib.vectors.LazyVectorStorage;
+import greglib.vectors.MappedVectorStorage;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -19,60 +27,474 @@ public class Word2vecReader {
 
     private static Logger LOGGER = Logger.getLogger(Word2vecReader.class.getName());
 
+    private static final int REGION_BITS = MappedVectorStorage.REGION_BITS;
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+    // rows per task when copying binary vectors
+    private static final int COPY_ROWS = 1 << 14;
+    // bytes per range when parsing text in parallel (a divisor of the mapped region size)
+    private static final int RANGE_BYTES = 1 << 24;
+    // longest line a text file may have
+    private static final int MAX_LINE_BYTES = 1 << 20;
+
     public static Embeddings readBinFile(String filename) throws IOException {
         return readBinFile(filename, 0);
     }
 
+    /**
+     * Read a word2vec binary file onto the heap.
+     * Words are found with one pass over the file; the vectors are then copied in parallel into storage that is
+     * allocated up front. Words are decoded as UTF-8. Empty and repeated words are skipped.
+     * @param filename the word2vec binary file
+     * @param maxWords the maximum number of words to read (0 for all)
+     * @return an Embeddings object with all of the vectors on the heap
+     * @throws IOException
+     */
     public static Embeddings readBinFile(String filename, int maxWords) throws IOException {
-        LOGGER.info("Reading greglib.vectors from word2vec binary file...");
-        InputStream reader = new FileInputStream(filename);
-        char c;
-        String nWordsStr = "";
-        while(true) {
-            c = (char)reader.read();
-            if(c==' ') break;
-            nWordsStr += c;
-        }
-        String sizeStr = "";
-        while(true) {
-            c = (char)reader.read();
-            if(c=='\n') break;
-            sizeStr += c;
-        }
-        int nWords = Integer.parseInt(nWordsStr);
+        LOGGER.info("Reading vectors from word2vec binary file " + filename + "...");
+        long start = System.currentTimeMillis();
+        BinIndex index = indexBinFile(filename, maxWords);
+        MappedVectorStorage mapped = new MappedVectorStorage(index.regions, index.dimensionality, index.offsets);
+        ArrayVectorStorage storage = allocate(index.dimensionality, index.words.size());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int begin = 0; begin < storage.size(); begin += COPY_ROWS) {
+            final int from = begin;
+            final int to = Math.min(storage.size(), begin + COPY_ROWS);
+            tasks.add(() -> {
+                for (int row = from; row < to; row++) {
+                    storage.getBuffer(row).put(mapped.getBuffer(row));
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        LOGGER.info("Read " + storage.size() + " word vectors with " + index.dimensionality + " dimensions in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return new Embeddings(index.words, storage);
+    }
+
+    public static Embeddings readTextFile(String filename) throws IOException {
+        return readTextFile(filename, 0);
+    }
+
+    /**
+     * Read a text vector file: one word per line followed by its values, separated by spaces or tabs.
+     * A first line of two numbers (vocabulary size and dimensionality), as written by word2vec and fastText, is
+     * skipped; without it, the dimensionality is taken from the first line.
+     * The file is split into byte ranges that start on line boundaries, which are parsed in parallel into storage
+     * that is allocated up front. Words are decoded as UTF-8. Empty and repeated words are skipped.
+     * @param filename the text file (.txt or .vec)
+     * @param maxWords the maximum number of words to read (0 for all)
+     * @return an Embeddings object with all of the vectors on the heap
+     * @throws IOException
+     */
+    public static Embeddings readTextFile(String filename, int maxWords) throws IOException {
+        LOGGER.info("Reading vectors from text file " + filename + "...");
+        long start = System.currentTimeMillis();
+        ByteBuffer[] regions;
+        long fileSize;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            regions = MappedVectorStorage.mapRegions(channel, MAX_LINE_BYTES);
+        }
+        // the first line is either a header or the first vector
+        long firstLineEnd = lineEnd(regions, 0, fileSize);
+        List<String> firstFields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (long position = 0; position <= firstLineEnd; position++) {
+            byte b = position < firstLineEnd ? MappedVectorStorage.byteAt(regions, position) : (byte) ' ';
+            if (b == ' ' || b == '\t' || b == '\r') {
+                if (field.length() > 0) firstFields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append((char) b);
+            }
+        }
+        long dataStart;
+        int dimensionality;
+        if (firstFields.size() == 2 && firstFields.get(0).matches("\\d+") && firstFields.get(1).matches("\\d+")) {
+            dimensionality = Integer.parseInt(firstFields.get(1));
+            dataStart = Math.min(fileSize, firstLineEnd + 1);
+        } else {
+            dimensionality = firstFields.size() - 1;
+            dataStart = 0;
+        }
+        if (dimensionality <= 0) throw new IOException("Can't find vectors in " + filename);
+
+        // split into ranges starting at line boundaries; RANGE_BYTES divides the region size, so a range only
+        // reaches past the region it starts in by part of a line, which the region overlap covers
+        List<long[]> ranges = new ArrayList<>();
+        long begin = dataStart;
+        while (begin < fileSize) {
+            long end = Math.min(fileSize, (begin / RANGE_BYTES + 1) * RANGE_BYTES);
+            if (end < fileSize) {
+                end = Math.min(fileSize, lineEnd(regions, end - 1, fileSize) + 1);
+            }
+            ranges.add(new long[]{begin, end});
+            begin = end;
+        }
+        // count lines first, so every range knows which row it starts at
+        List<Callable<Integer>> counts = new ArrayList<>();
+        for (long[] range : ranges) {
+            counts.add(() -> countLines(regions, range[0], range[1]));
+        }
+        List<Integer> lineCounts = invokeAll(counts);
+        int[] firstRows = new int[ranges.size() + 1];
+        for (int r = 0; r < ranges.size(); r++) {
+            firstRows[r + 1] = firstRows[r] + lineCounts.get(r);
+        }
+        int rows = firstRows[ranges.size()];
+        if (maxWords > 0 && maxWords < rows) {
+            rows = maxWords;
+        }
+        ArrayVectorStorage storage = allocate(dimensionality, rows);
+        String[] words = new String[rows];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int r = 0; r < ranges.size() && firstRows[r] < rows; r++) {
+            long[] range = ranges.get(r);
+            int firstRow = firstRows[r];
+            tasks.add(() -> {
+                parseLines(regions, range[0], range[1], firstRow, storage, words);
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        Embeddings embeddings = withoutRepeats(words, storage);
+        LOGGER.info("Read " + embeddings.size() + " word vectors with " + dimensionality + " dimensions in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return embeddings;
+    }
+
+    /**
+     * @return the position of the newline ending the line that this position is in (or the end of the file)
+     */
+    private static long lineEnd(ByteBuffer[] regions, long position, long fileSize) throws IOException {
+        long end = position;
+        while (end < fileSize && MappedVectorStorage.byteAt(regions, end) != '\n') {
+            end++;
+        }
+        if (end - position > MAX_LINE_BYTES) {
+            throw new IOException("Line at byte " + position + " is longer than " + MAX_LINE_BYTES + " bytes");
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * Count the lines in a range that aren't blank, for a range that starts at the beginning of a line
+     */
+    private static int countLines(ByteBuffer[] regions, long begin, long end) {
+        ByteBuffer region = regions[(int) (begin >>> REGION_BITS)];
+        int first = (int) (begin & REGION_MASK);
+        int limit = first + (int) (end - begin);
+        int lines = 0;
+        boolean counted = false;
+        for (int i = first; i < limit; i++) {
+            byte b = region.get(i);
+            if (b == '\n') {
+                counted = false;
+            } else if (!counted && !isSpace(b)) {
+                lines++;
+                counted = true;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Parse the lines in a range into consecutive rows of the storage, starting at a given row
+     */
+    private static void parseLines(ByteBuffer[] regions, long begin, long end, int firstRow,
+                                   ArrayVectorStorage storage, String[] words) throws IOException {
+        ByteBuffer region = regions[(int) (begin >>> REGION_BITS)];
+        int i = (int) (begin & REGION_MASK);
+        int limit = i + (int) (end - begin);
+        int dimensionality = storage.dimensionality();
+        float[] vector = new float[dimensionality];
+        byte[] wordBytes = new byte[64];
+        int row = firstRow;
+        byte b;
+        while (i < limit && row < words.length) {
+            // skip the end of the previous line, and blank lines
+            if (isSpace(region.get(i))) {
+                i++;
+                continue;
+            }
+            int length = 0;
+            while (i < limit && (b = region.get(i)) != ' ' && b != '\t' && b != '\n') {
+                if (length == wordBytes.length) {
+                    wordBytes = Arrays.copyOf(wordBytes, length * 2);
+                }
+                wordBytes[length++] = b;
+                i++;
+            }
+            words[row] = new String(wordBytes, 0, length, StandardCharsets.UTF_8);
+            int values = 0;
+            while (true) {
+                while (i < limit && ((b = region.get(i)) == ' ' || b == '\t' || b == '\r')) {
+                    i++;
+                }
+                if (i >= limit || region.get(i) == '\n') break;
+                int fieldStart = i;
+                while (i < limit && (b = region.get(i)) != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    i++;
+                }
+                if (values == dimensionality) {
+                    throw new IOException("More than " + dimensionality + " values for \"" + words[row] + "\"");
+                }
+                vector[values++] = parseFloat(region, fieldStart, i);
+            }
+            if (values != dimensionality) {
+                throw new IOException(values + " values for \"" + words[row] + "\"; expected " + dimensionality);
+            }
+            storage.getBuffer(row).put(vector);
+            row++;
+        }
+    }
+
+    // the powers of ten that are exact in a float
+    private static final float[] POWERS_OF_TEN = new float[11];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Parse a decimal number from ASCII bytes without creating a String.
+     * When the digits form an integer below 2^24 and the power of ten is at most 10^10 (nearly all vector values),
+     * both are exact floats, so a single float multiply or divide rounds correctly and the result is the same as
+     * Float.parseFloat's (Clinger's fast path). Anything else goes through Float.parseFloat.
+     */
+    static float parseFloat(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        for (; i < end && (b = buffer.get(i)) >= '0' && b <= '9' && digits <= 15; i++) {
+            seenDigit = true;
+            mantissa = mantissa * 10 + (b - '0');
+            if (mantissa != 0) digits++;
+        }
+        if (i < end && buffer.get(i) == '.') {
+            for (i++; i < end && (b = buffer.get(i)) >= '0' && b <= '9' && digits <= 15; i++) {
+                seenDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) digits++;
+                exponent--;
+            }
+        }
+        if (seenDigit && i < end && ((b = buffer.get(i)) == 'e' || b == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && ((b = buffer.get(i)) == '-' || b == '+')) {
+                negativeExponent = b == '-';
+                i++;
+            }
+            int e = 0;
+            int exponentStart = i;
+            for (; i < end && (b = buffer.get(i)) >= '0' && b <= '9' && e < 1000; i++) {
+                e = e * 10 + (b - '0');
+            }
+            if (i == exponentStart) seenDigit = false;
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end || !seenDigit || mantissa >= 1 << 24 || exponent < -10 || exponent > 10) {
+            byte[] bytes = new byte[end - start];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = buffer.get(start + j);
+            }
+            return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+        }
+        float value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private static ArrayVectorStorage allocate(int dimensionality, int rows) {
+        ArrayVectorStorage storage = new ArrayVectorStorage(dimensionality, rows);
+        for (int i = 0; i < rows; i++) {
+            storage.allocate();
+        }
+        return storage;
+    }
+
+    /**
+     * Build Embeddings from parsed rows, leaving out empty words and all but the first row of repeated words
+     */
+    private static Embeddings withoutRepeats(String[] words, ArrayVectorStorage storage) {
+        Set<String> seen = new HashSet<>(words.length * 4 / 3 + 1);
+        List<String> kept = new ArrayList<>(words.length);
+        for (String word : words) {
+            if (word.length() > 0 && seen.add(word)) kept.add(word);
+        }
+        if (kept.size() == words.length) {
+            return new Embeddings(kept, storage);
+        }
+        LOGGER.info("Skipped " + (words.length - kept.size()) + " empty or repeated words");
+        seen.clear();
+        ArrayVectorStorage compacted = new ArrayVectorStorage(storage.dimensionality(), kept.size());
+        float[] vector = new float[storage.dimensionality()];
+        for (int row = 0; row < words.length; row++) {
+            if (words[row].length() > 0 && seen.add(words[row])) {
+                storage.copyRow(row, vector, 0);
+                compacted.add(vector, 0);
+            }
+        }
+        return new Embeddings(kept, compacted);
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : Threading.getPool().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            // the pool may wrap a task's checked exception in RuntimeExceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    public static Embeddings mapBinFile(String filename) throws IOException {
+        return mapBinFile(filename, 0);
+    }
+
+    /**
+     * Memory-map a word2vec binary file rather than reading it onto the heap.
+     * Only the words and the position of each vector are read up front; vectors are paged in from the file as they
+     * are used, and Embeddings.getBuffer returns them without copying.
+     * Words are decoded as UTF-8. Empty and repeated words are skipped.
+     * @param filename the word2vec binary file
+     * @param maxWords the maximum number of words to index (0 for all)
+     * @return an Embeddings object backed by the mapped file
+     * @throws IOException
+     */
+    public static Embeddings mapBinFile(String filename, int maxWords) throws IOException {
+        LOGGER.info("Mapping vectors from word2vec binary file " + filename + "...");
+        BinIndex index = indexBinFile(filename, maxWords);
+        MappedVectorStorage storage = new MappedVectorStorage(index.regions, index.dimensionality, index.offsets);
+        LOGGER.info("Mapped " + index.words.size() + " word vectors with " + index.dimensionality + " dimensions");
+        return new Embeddings(index.words, storage);
+    }
+
+    /**
+     * Open a word2vec binary file for on-demand reading.
+     * The file is indexed up front (words and vector offsets only); each vector is read from disk the first time it is
+     * used and kept in a least-recently-used cache of at most cacheBytes, so the heap holds only the working set.
+     * The storage (see Embeddings.getStorage) is a LazyVectorStorage, which reports cache statistics and keeps the
+     * file open until it is closed.
+     * @param filename the word2vec binary file
+     * @param maxWords the maximum number of words to index (0 for all)
+     * @param cacheBytes roughly how much heap cached vectors may take up
+     * @return an Embeddings object that reads vectors as they are needed
+     * @throws IOException
+     */
+    public static Embeddings openBinFile(String filename, int maxWords, long cacheBytes) throws IOException {
+        LOGGER.info("Indexing vectors in word2vec binary file " + filename + "...");
+        BinIndex index = indexBinFile(filename, maxWords);
+        // only the offsets are needed from here on; let the mapping go
+        index.regions = null;
+        LazyVectorStorage storage = new LazyVectorStorage(index.dimensionality, index.words.size(),
+                LazyVectorStorage.floatReader(Paths.get(filename), index.dimensionality, index.offsets), cacheBytes);
+        LOGGER.info("Indexed " + index.words.size() + " word vectors with " + index.dimensionality + " dimensions");
+        return new Embeddings(index.words, storage);
+    }
+
+    /**
+     * The words of a mapped word2vec binary file and the byte offset of each one's vector
+     */
+    private static class BinIndex {
+        ByteBuffer[] regions;
+        int dimensionality;
+        List<String> words;
+        long[] offsets;
+    }
+
+    /**
+     * Map a word2vec binary file and find every word and vector in one pass, skipping over the vectors themselves.
+     * Empty and repeated words are left out.
+     */
+    private static BinIndex indexBinFile(String filename, int maxWords) throws IOException {
+        ByteBuffer[] regions;
+        long fileSize;
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            // dimensionality is not known until the header is read, so allow for vectors of up to 16k floats
+            regions = MappedVectorStorage.mapRegions(channel, 1 << 16);
+        }
+        long position = 0;
+        StringBuilder header = new StringBuilder();
+        while (true) {
+            if (position >= fileSize) throw new EOFException("File ends in the header");
+            byte b = MappedVectorStorage.byteAt(regions, position++);
+            if (b == '\n') break;
+            header.append((char) b);
+        }
+        String[] fields = header.toString().trim().split(" ");
+        int nWords = Integer.parseInt(fields[0]);
         if (maxWords > 0 && maxWords < nWords) {
             nWords = maxWords;
         }
-        int size = Integer.parseInt(sizeStr);
-        Embeddings wes = new Embeddings(size);
-        char firstchar = '\n';
-        byte[] bytes = new byte[size*4];
-        for(int i=0; i<nWords; i++) {
-            String word = "";
-            if(firstchar != '\n')
-                word += firstchar;
-            while((c = (char)reader.read()) != ' ') {
-                word += c;
+        int size = Integer.parseInt(fields[1]);
+        long vectorBytes = size * 4L;
+        if (vectorBytes > 1 << 16) {
+            throw new IOException("Vectors of " + size + " dimensions are too large to map");
+        }
+
+        List<String> words = new ArrayList<>(nWords);
+        Set<String> seen = new HashSet<>(nWords * 4 / 3 + 1);
+        long[] offsets = new long[nWords];
+        byte[] wordBytes = new byte[64];
+        for (int i = 0; i < nWords; i++) {
+            // Files from the C word2vec have a newline after each vector; others (like GoogleNews) don't
+            while (position < fileSize && MappedVectorStorage.byteAt(regions, position) == '\n') {
+                position++;
             }
-            // Read in all bytes associated with this vector
-            reader.read(bytes, 0, size*4);
-            float vector[] = new float[size];
-            for(int j=0; j<size; j++) {
-                vector[j] = ByteBuffer.wrap(bytes, j*4, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+            int length = 0;
+            while (true) {
+                if (position >= fileSize) throw new EOFException("File ends in the middle of word " + i);
+                byte b = MappedVectorStorage.byteAt(regions, position++);
+                if (b == ' ') break;
+                if (length == wordBytes.length) {
+                    wordBytes = Arrays.copyOf(wordBytes, length * 2);
+                }
+                wordBytes[length++] = b;
             }
-            // For some files, there's an extra \n (such as those generated by the C word2vec)
-            // For others, there's no newline--it goes straight to the next word (the GoogleNews greglib.vectors, e.g.)
-            firstchar = (char) reader.read();
-            if (word.length() > 0) {
-                wes.addWordAndEmbedding(word, new WordEmbedding(vector));
+            if (position + vectorBytes > fileSize) {
+                throw new EOFException("File ends in the middle of vector " + i);
             }
-            else {
-                LOGGER.info("Not including zero-length phrase in Embeddings (don't worry about it)");
+            String word = new String(wordBytes, 0, length, StandardCharsets.UTF_8);
+            if (length > 0 && seen.add(word)) {
+                offsets[words.size()] = position;
+                words.add(word);
             }
+            position += vectorBytes;
         }
-        LOGGER.info("Read " + nWords + " word greglib.vectors with " + sizeStr + " dimensions");
-
-        return wes;
+        if (words.size() < nWords) {
+            LOGGER.info("Skipped " + (nWords - words.size()) + " empty or repeated words");
+        }
+        BinIndex index = new BinIndex();
+        index.regions = regions;
+        index.dimensionality = size;
+        index.words = words;
+        index.offsets = Arrays.copyOf(offsets, words.size());
+        return index;
     }
 
     /**
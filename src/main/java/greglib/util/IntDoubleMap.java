@@ -0,0 +1,183 @@
+package greglib.util;
+
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * A map from non-negative int keys to double values, using open addressing (linear probing) over primitive arrays.
+ * Nothing is boxed, and addTo finds or inserts a key in a single probe sequence.
+ *
+ * Entries can be walked without allocating: slots run from 0 to capacity(), and isOccupied/keyAt/valueAt read them.
+ */
+public class IntDoubleMap {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private double[] values;
+    private int size;
+    private int mask;
+    private int resizeAt;
+
+    public IntDoubleMap() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize how many entries the map should hold without resizing
+     */
+    public IntDoubleMap(int expectedSize) {
+        int capacity = 8;
+        while (capacity * 2 < expectedSize * 3) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public IntDoubleMap(IntDoubleMap orig) {
+        keys = Arrays.copyOf(orig.keys, orig.keys.length);
+        values = Arrays.copyOf(orig.values, orig.values.length);
+        size = orig.size;
+        mask = orig.mask;
+        resizeAt = orig.resizeAt;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new double[capacity];
+        mask = capacity - 1;
+        // keep the table at most two thirds full
+        resizeAt = capacity / 3 * 2;
+    }
+
+    private int slot(int key) {
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (keys[slot] != key && keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double get(int key) {
+        if (key < 0) return 0;
+        int slot = slot(key);
+        return keys[slot] == EMPTY ? 0 : values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && keys[slot(key)] != EMPTY;
+    }
+
+    public void put(int key, double value) {
+        int slot = insertionSlot(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Add to the value of a key, starting from zero if it isn't in the map yet
+     * @return the new value
+     */
+    public double addTo(int key, double delta) {
+        int slot = insertionSlot(key);
+        return values[slot] += delta;
+    }
+
+    private int insertionSlot(int key) {
+        if (key < 0) throw new IllegalArgumentException("Keys must not be negative: " + key);
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            if (size >= resizeAt) {
+                rehash(keys.length * 2);
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Replace every value with a function of itself
+     */
+    public void transformValues(DoubleUnaryOperator function) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                values[i] = function.applyAsDouble(values[i]);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    /**
+     * @return the number of slots, occupied or not
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public double valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Copy the entries into parallel arrays sorted by key
+     * @param sortedKeys array of at least size() ints to hold the keys
+     * @param sortedValues array of at least size() doubles to hold the values
+     */
+    public void toSortedArrays(int[] sortedKeys, double[] sortedValues) {
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                sortedKeys[n++] = keys[i];
+            }
+        }
+        Arrays.sort(sortedKeys, 0, n);
+        for (int i = 0; i < n; i++) {
+            sortedValues[i] = get(sortedKeys[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                if (builder.length() > 1) builder.append(", ");
+                builder.append(keys[i]).append('=').append(values[i]);
+            }
+        }
+        return builder.append('}').toString();
+    }
+}
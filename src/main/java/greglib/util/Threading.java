@@ -3,6 +3,7 @@ package greglib.util;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -44,6 +45,20 @@ public final class Threading {
     }
 
 
+    /**
+     * Get the shared pool for fork-join processing, creating it on first use with getNThreads() workers.
+     * Later calls to setNThreads do not resize a pool that already exists.
+     * @return the shared pool
+     */
+    public static ForkJoinPool getPool() {
+        return PoolHolder.POOL;
+    }
+
+    // initialized by the JVM on the first call to getPool, so the call itself never takes a lock
+    private static final class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(nThreads);
+    }
+
     /**
      * Perform threaded processing with any objects. Needs a class
      * @param max
@@ -76,13 +91,14 @@ public final class Threading {
             thread.start();
         }
         // wait for all the threads to finish before returning
-        int nReady;
-        do {
-            nReady = 0;
-            for(Thread thread : threads) {
-                if(thread.getState().equals(Thread.State.TERMINATED)) nReady++;
+        for(Thread thread : threads) {
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for threads", e);
             }
-        } while(nReady < nThreads);
+        }
     }
 
     /**
@@ -0,0 +1,160 @@
+package greglib.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the k highest-scoring (index, score) pairs offered to it, using a bounded min-heap over primitive arrays.
+ * Offering is O(log k) at worst and O(1) for anything below the current threshold, with no boxing.
+ * Ties on score are broken in favor of the lower index, so results don't depend on the order of offers.
+ *
+ * Call sort() once all candidates have been offered; results are then read with getIndex/getScore in descending order.
+ */
+public class TopKHeap {
+
+    private final int k;
+    private final int[] indices;
+    private final double[] scores;
+    private int size;
+    private boolean sorted;
+
+    public TopKHeap(int k) {
+        if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+        this.k = k;
+        indices = new int[k];
+        scores = new double[k];
+    }
+
+    public int capacity() {
+        return k;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the lowest score that is currently kept, or negative infinity if the heap isn't full yet
+     */
+    public double threshold() {
+        return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offer a candidate
+     * @param index the candidate's index
+     * @param score the candidate's score (NaN scores are ignored)
+     * @return true if the candidate was kept (for now)
+     */
+    public boolean offer(int index, double score) {
+        if (sorted) throw new IllegalStateException("Can't offer to a heap that has been sorted");
+        if (score != score || k == 0) return false;
+        if (size < k) {
+            indices[size] = index;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if (!worse(scores[0], indices[0], score, index)) return false;
+        indices[0] = index;
+        scores[0] = score;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Offer every candidate kept by another heap
+     */
+    public void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.indices[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Order the kept candidates from best to worst. No more candidates may be offered after this.
+     * @return this heap
+     */
+    public TopKHeap sort() {
+        if (sorted) return this;
+        // heapsort: repeatedly move the worst remaining candidate to the end
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+        return this;
+    }
+
+    /**
+     * @param rank position in the results, 0 being the best (requires sort())
+     */
+    public int getIndex(int rank) {
+        checkRank(rank);
+        return indices[rank];
+    }
+
+    /**
+     * @param rank position in the results, 0 being the best (requires sort())
+     */
+    public double getScore(int rank) {
+        checkRank(rank);
+        return scores[rank];
+    }
+
+    /**
+     * @return the kept indices, best first (requires sort())
+     */
+    public int[] indices() {
+        checkRank(0);
+        return Arrays.copyOf(indices, size);
+    }
+
+    /**
+     * @return the kept scores, best first (requires sort())
+     */
+    public double[] scores() {
+        checkRank(0);
+        return Arrays.copyOf(scores, size);
+    }
+
+    private void checkRank(int rank) {
+        if (!sorted) throw new IllegalStateException("Call sort() before reading results");
+        if (rank < 0 || (rank >= size && rank > 0)) throw new IndexOutOfBoundsException("Rank " + rank + " of " + size);
+    }
+
+    // is candidate a ranked below candidate b?
+    private static boolean worse(double aScore, int aIndex, double bScore, int bIndex) {
+        return aScore < bScore || (aScore == bScore && aIndex > bIndex);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(scores[i], indices[i], scores[parent], indices[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) break;
+            if (child + 1 < end && worse(scores[child + 1], indices[child + 1], scores[child], indices[child])) {
+                child++;
+            }
+            if (!worse(scores[child], indices[child], scores[i], indices[i])) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
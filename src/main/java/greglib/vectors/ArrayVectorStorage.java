@@ -0,0 +1,150 @@
+package greglib.vectors;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap storage that packs all vectors row-major into a few large float arrays instead of one object per vector.
+ * Chunks are never reallocated, so views handed out by getEmbedding stay attached as rows are added.
+ */
+public class ArrayVectorStorage extends VectorStorage {
+
+    // 1M floats (4 MB) per chunk unless the expected number of rows is smaller
+    private static final int CHUNK_FLOATS = 1 << 20;
+
+    private final int dimensionality;
+    private final int rowsPerChunk;
+    private final List<float[]> chunks;
+    private int size;
+
+    public ArrayVectorStorage(int dimensionality) {
+        this(dimensionality, 0);
+    }
+
+    /**
+     * @param dimensionality the length of every vector
+     * @param expectedRows how many rows will be added, if known (0 if not); used to size chunks
+     */
+    public ArrayVectorStorage(int dimensionality, int expectedRows) {
+        this.dimensionality = dimensionality;
+        int rows = Math.max(1, CHUNK_FLOATS / Math.max(1, dimensionality));
+        if (expectedRows > 0 && expectedRows < rows) {
+            rows = expectedRows;
+        }
+        rowsPerChunk = rows;
+        chunks = new ArrayList<>();
+        size = 0;
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    int rowsPerChunk() {
+        return rowsPerChunk;
+    }
+
+    /**
+     * The array holding this row; the row starts at offset(row)
+     */
+    float[] chunk(int row) {
+        return chunks.get(row / rowsPerChunk);
+    }
+
+    int offset(int row) {
+        return (row % rowsPerChunk) * dimensionality;
+    }
+
+    @Override
+    public float get(int row, int col) {
+        return chunk(row)[offset(row) + col];
+    }
+
+    public void set(int row, int col, float value) {
+        chunk(row)[offset(row) + col] = value;
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        System.arraycopy(chunk(row), offset(row), dest, destOffset, dimensionality);
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        return VectorKernels.dot(chunk(row), offset(row), query, offset, dimensionality);
+    }
+
+    /**
+     * Scores four queries per pass over the row, so each row element is loaded once for four multiply-adds
+     */
+    @Override
+    public void dots(int row, float[] queries, int offset, int nQueries, double[] scores) {
+        float[] chunk = chunk(row);
+        int start = offset(row);
+        int q = 0;
+        for (; q + 4 <= nQueries; q += 4) {
+            VectorKernels.dot4(chunk, start, queries, offset + q * dimensionality, dimensionality, scores, q);
+        }
+        for (; q < nQueries; q++) {
+            scores[q] = dot(row, queries, offset + q * dimensionality);
+        }
+    }
+
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return WordEmbedding.view(chunk(row), offset(row), dimensionality);
+    }
+
+    /**
+     * Returns a buffer over the storage itself; writes to it change the stored vector
+     */
+    @Override
+    public FloatBuffer getBuffer(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return FloatBuffer.wrap(chunk(row), offset(row), dimensionality).slice();
+    }
+
+    @Override
+    public boolean supportsAdd() {
+        return true;
+    }
+
+    @Override
+    public int add(float[] vector, int offset) {
+        int row = allocate();
+        System.arraycopy(vector, offset, chunk(row), offset(row), dimensionality);
+        return row;
+    }
+
+    /**
+     * Add a zeroed row to be filled in by the caller
+     * @return the index of the new row
+     */
+    public int allocate() {
+        if (size == chunks.size() * rowsPerChunk) {
+            chunks.add(new float[rowsPerChunk * dimensionality]);
+        }
+        return size++;
+    }
+
+    @Override
+    public void normalizeRows() {
+        for (int row = 0; row < size; row++) {
+            float[] chunk = chunk(row);
+            int start = offset(row);
+            double mag = Math.sqrt(VectorKernels.squaredNorm(chunk, start, dimensionality));
+            if (mag == 0) continue;
+            for (int i = start; i < start + dimensionality; i++) {
+                chunk[i] /= mag;
+            }
+        }
+    }
+}
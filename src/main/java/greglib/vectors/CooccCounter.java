@@ -0,0 +1,510 @@
+package greglib.vectors;
+
+import greglib.io.LinesFromFilesInPath;
+import greglib.util.IntDoubleMap;
+import greglib.util.Threading;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Counts word co-occurrences within a sliding window over a corpus of text files, using every thread of the shared
+ * pool. Each worker takes whole files from a shared queue and counts into its own vocabulary and primitive maps, so
+ * workers never contend; the results are merged into one vocabulary (sorted by frequency) and one CooccMatrix at the
+ * end, with rows of the merged matrix split across the pool.
+ *
+ * Lines are treated as separate contexts, and counts are symmetric: each pair within the window is counted in both
+ * directions.
+ *
+ * For corpora whose counts don't fit in memory, set a memory budget. Counting then works like GloVe's cooccur tool:
+ * a first pass counts the vocabulary, and a second pass counts pairs, spilling each worker's counts to a temporary
+ * file as a sorted run whenever its share of the budget fills up. The runs are merged (k ways at once) straight into
+ * a matrix file, which is then mapped.
+ */
+public class CooccCounter {
+
+    private static final Logger LOGGER = Logger.getLogger(CooccCounter.class.getName());
+
+    private final int window;
+    private boolean distanceWeighting;
+    private int minCount = 1;
+    private int workers = Threading.getNThreads();
+    private Function<String, String[]> tokenizer = line -> line.trim().split("\\s+");
+    private long memoryBudget;
+    private Path tempDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * @param window how many words on either side of a word count as its context
+     */
+    public CooccCounter(int window) {
+        if (window < 1) throw new IllegalArgumentException("Window must be at least 1");
+        this.window = window;
+    }
+
+    /**
+     * @param distanceWeighting true to count a pair of words d positions apart as 1/d (as GloVe does) instead of 1
+     */
+    public void setDistanceWeighting(boolean distanceWeighting) {
+        this.distanceWeighting = distanceWeighting;
+    }
+
+    /**
+     * @param minCount words seen fewer times than this are left out of the vocabulary and the matrix
+     */
+    public void setMinCount(int minCount) {
+        this.minCount = minCount;
+    }
+
+    /**
+     * @param workers how many files to count at once (by default, Threading.getNThreads())
+     */
+    public void setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    /**
+     * @param tokenizer splits a line into words (by default, on whitespace); empty words are skipped
+     */
+    public void setTokenizer(Function<String, String[]> tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Bound the memory used for counting, spilling counts to disk when it fills up
+     * @param bytes approximate heap budget for the counts held by all workers together, or 0 for no limit; it must
+     *              leave room for each worker's table of rows, about 8 bytes per vocabulary word
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @param tempDirectory where to write spilled runs and (if no matrix file is given) the final matrix
+     */
+    public void setTempDirectory(Path tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Count co-occurrences in all files under a path, as found by LinesFromFilesInPath
+     */
+    public CooccMatrix count(Path path) throws IOException {
+        return count(LinesFromFilesInPath.listFiles(path));
+    }
+
+    /**
+     * Count co-occurrences in all files under a path, writing the matrix to a file
+     */
+    public CooccMatrix count(Path path, String matrixFile) throws IOException {
+        return count(LinesFromFilesInPath.listFiles(path), matrixFile);
+    }
+
+    /**
+     * Count co-occurrences in a list of files. With a memory budget, the matrix is written to a temporary file
+     * (deleted when the JVM exits) and mapped.
+     * @return a matrix over every word seen at least minCount times, most frequent words first
+     */
+    public CooccMatrix count(List<File> files) throws IOException {
+        if (memoryBudget <= 0) {
+            return merge(countShards(files, true));
+        }
+        File matrixFile = File.createTempFile("coocc", ".csr", tempDirectory.toFile());
+        matrixFile.deleteOnExit();
+        return count(files, matrixFile.getPath());
+    }
+
+    /**
+     * Count co-occurrences in a list of files, writing the matrix to a file that is then mapped
+     * @return a matrix over every word seen at least minCount times, most frequent words first
+     */
+    public CooccMatrix count(List<File> files, String matrixFile) throws IOException {
+        if (memoryBudget <= 0) {
+            merge(countShards(files, true)).save(matrixFile);
+            return CooccMatrix.open(matrixFile);
+        }
+        CooccVectorSpace vocabulary = mergeVocabulary(countShards(files, false));
+        List<File> runs = new ArrayList<>();
+        try {
+            long start = System.currentTimeMillis();
+            int nWorkers = Math.min(workers, Math.max(1, files.size()));
+            // each worker's builder keeps a slot per vocabulary word whether or not the row has counts
+            long perWorker = memoryBudget / nWorkers - (long) SpillingShard.BYTES_PER_ROW * vocabulary.size();
+            if (perWorker <= 0) {
+                throw new IllegalArgumentException("A memory budget of " + memoryBudget + " bytes doesn't cover "
+                        + nWorkers + " workers' row tables for a vocabulary of " + vocabulary.size() + " words");
+            }
+            List<SpillingShard> shards = forEachFile(files, () -> new SpillingShard(vocabulary, perWorker),
+                    SpillingShard::countFile);
+            List<Callable<Void>> finalSpills = new ArrayList<>();
+            for (SpillingShard shard : shards) {
+                finalSpills.add(() -> {
+                    shard.spill();
+                    return null;
+                });
+            }
+            invokeAll(finalSpills);
+            shards.forEach(shard -> runs.addAll(shard.runs));
+            LOGGER.info("Spilled counts to " + runs.size() + " runs in " + (System.currentTimeMillis() - start)
+                    + " ms");
+            mergeRuns(runs, vocabulary, matrixFile);
+        } finally {
+            runs.forEach(File::delete);
+        }
+        return CooccMatrix.open(matrixFile);
+    }
+
+    private List<Shard> countShards(List<File> files, boolean countPairs) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Shard> shards = forEachFile(files, () -> new Shard(countPairs), Shard::countFile);
+        long tokens = 0;
+        for (Shard shard : shards) {
+            tokens += shard.tokens;
+        }
+        LOGGER.info("Counted " + (countPairs ? "" : "vocabulary of ") + tokens + " tokens in " + files.size()
+                + " files with " + shards.size() + " workers in " + (System.currentTimeMillis() - start) + " ms");
+        return shards;
+    }
+
+    private interface FileCounter<S> {
+        void countFile(S shard, File file) throws IOException;
+    }
+
+    /**
+     * Have each worker create a shard and count whole files into it, taking files from a shared queue
+     */
+    private <S> List<S> forEachFile(List<File> files, Supplier<S> newShard, FileCounter<S> counter)
+            throws IOException {
+        AtomicInteger nextFile = new AtomicInteger();
+        List<Callable<S>> tasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(workers, files.size()); i++) {
+            tasks.add(() -> {
+                S shard = newShard.get();
+                for (int f = nextFile.getAndIncrement(); f < files.size(); f = nextFile.getAndIncrement()) {
+                    counter.countFile(shard, files.get(f));
+                }
+                return shard;
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : Threading.getPool().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            // the pool may wrap a task's checked exception in RuntimeExceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Merge per-worker vocabularies into one, leaving out words seen fewer than minCount times
+     * @return the merged vocabulary, most frequent words first
+     */
+    private CooccVectorSpace mergeVocabulary(List<Shard> shards) {
+        Map<String, Long> wordCounts = new HashMap<>();
+        for (Shard shard : shards) {
+            for (int i = 0; i < shard.space.size(); i++) {
+                wordCounts.merge(shard.space.getWord(i), shard.counts[i], Long::sum);
+            }
+        }
+        List<String> words = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : wordCounts.entrySet()) {
+            if (entry.getValue() >= minCount) words.add(entry.getKey());
+        }
+        words.sort((a, b) -> {
+            int comp = Long.compare(wordCounts.get(b), wordCounts.get(a));
+            return comp != 0 ? comp : a.compareTo(b);
+        });
+        CooccVectorSpace vocabulary = new CooccVectorSpace();
+        for (String word : words) {
+            vocabulary.addWord(word);
+        }
+        return vocabulary;
+    }
+
+    /**
+     * Merge per-worker counts into one vocabulary and matrix
+     */
+    private CooccMatrix merge(List<Shard> shards) throws IOException {
+        CooccMatrix.Builder merged = new CooccMatrix.Builder(mergeVocabulary(shards));
+        merged.reserveRows(merged.getSpace().size());
+        // map each worker's word indices to merged ones (-1 for words below minCount)
+        int[][] toMerged = new int[shards.size()][];
+        for (int s = 0; s < shards.size(); s++) {
+            CooccVectorSpace local = shards.get(s).space;
+            toMerged[s] = new int[local.size()];
+            for (int i = 0; i < local.size(); i++) {
+                Integer index = merged.getSpace().getIndex(local.getWord(i));
+                toMerged[s][i] = index == null ? -1 : index;
+            }
+        }
+
+        // each task owns the merged rows congruent to its number, so no two tasks touch the same row
+        int partitions = Math.max(1, Threading.getNThreads());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            tasks.add(() -> {
+                for (int s = 0; s < shards.size(); s++) {
+                    CooccMatrix.Builder local = shards.get(s).builder;
+                    int[] map = toMerged[s];
+                    for (int row = 0; row < map.length; row++) {
+                        int mergedRow = map[row];
+                        if (mergedRow < 0 || mergedRow % partitions != partition) continue;
+                        IntDoubleMap counts = local.existingRow(row);
+                        if (counts == null) continue;
+                        IntDoubleMap mergedCounts = merged.row(mergedRow);
+                        for (int slot = 0; slot < counts.capacity(); slot++) {
+                            if (counts.isOccupied(slot)) {
+                                int column = map[counts.keyAt(slot)];
+                                if (column >= 0) mergedCounts.addTo(column, counts.valueAt(slot));
+                            }
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+        invokeAll(tasks);
+        shards.clear();
+        CooccMatrix matrix = merged.build();
+        LOGGER.info("Merged counts into " + matrix.rows() + " words with " + matrix.nonZeroCount() + " entries");
+        return matrix;
+    }
+
+    /**
+     * Merge sorted runs into a matrix file, summing the counts for pairs that appear in more than one run
+     */
+    private void mergeRuns(List<File> runFiles, CooccVectorSpace vocabulary, String matrixFile) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Run> runs = new ArrayList<>();
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, runFiles.size()), (a, b) ->
+                a.row != b.row ? Integer.compare(a.row, b.row) : Integer.compare(a.column, b.column));
+        int size = vocabulary.size();
+        try (CooccMatrix.CsrWriter writer = new CooccMatrix.CsrWriter(matrixFile, vocabulary, size, size)) {
+            for (File file : runFiles) {
+                Run run = new Run(file);
+                runs.add(run);
+                if (run.next()) queue.add(run);
+            }
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                int row = run.row;
+                int column = run.column;
+                double sum = run.value;
+                if (run.next()) queue.add(run);
+                while (!queue.isEmpty() && queue.peek().row == row && queue.peek().column == column) {
+                    Run same = queue.poll();
+                    sum += same.value;
+                    if (same.next()) queue.add(same);
+                }
+                writer.add(row, column, sum);
+            }
+        } finally {
+            for (Run run : runs) {
+                run.in.close();
+            }
+        }
+        LOGGER.info("Merged " + runFiles.size() + " runs into " + matrixFile + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Reads back a run written by SpillingShard.spill: (int row, int column, double count) in sorted order
+     */
+    private static class Run {
+        final DataInputStream in;
+        long remaining;
+        int row;
+        int column;
+        double value;
+
+        Run(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            remaining = file.length() / 16;
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) return false;
+            remaining--;
+            row = in.readInt();
+            column = in.readInt();
+            value = in.readDouble();
+            return true;
+        }
+    }
+
+    /**
+     * One worker's counts over the shared (read-only) vocabulary, spilled to a sorted run whenever they outgrow
+     * the worker's share of the memory budget
+     */
+    private class SpillingShard {
+        // an IntDoubleMap slot is an int key and a double value
+        private static final int BYTES_PER_SLOT = 12;
+        // an IntDoubleMap object and its two array headers, before any slots
+        private static final int BYTES_PER_MAP = 64;
+        // a reference (and ArrayList slack) in the builder's list of rows
+        static final int BYTES_PER_ROW = 8;
+
+        final CooccVectorSpace vocabulary;
+        final long budget;
+        final List<File> runs = new ArrayList<>();
+        private CooccMatrix.Builder builder;
+        // heap taken up by the row maps, counted by capacity rather than entries
+        private long bytes;
+        private int[] ids = new int[64];
+
+        SpillingShard(CooccVectorSpace vocabulary, long budget) {
+            this.vocabulary = vocabulary;
+            this.budget = budget;
+            builder = new CooccMatrix.Builder(vocabulary);
+        }
+
+        void countFile(File file) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    countLine(line);
+                    if (bytes > budget) spill();
+                }
+            }
+        }
+
+        private void countLine(String line) {
+            String[] words = tokenizer.apply(line);
+            if (ids.length < words.length) ids = new int[Math.max(words.length, 2 * ids.length)];
+            int n = 0;
+            for (String word : words) {
+                if (word.isEmpty()) continue;
+                // words left out of the vocabulary still take up a position in the window
+                Integer id = vocabulary.getIndex(word);
+                ids[n++] = id == null ? -1 : id;
+            }
+            for (int i = 0; i < n; i++) {
+                if (ids[i] < 0) continue;
+                for (int j = i + 1; j < n && j <= i + window; j++) {
+                    if (ids[j] < 0) continue;
+                    double weight = distanceWeighting ? 1.0 / (j - i) : 1;
+                    add(ids[i], ids[j], weight);
+                    add(ids[j], ids[i], weight);
+                }
+            }
+        }
+
+        private void add(int row, int column, double weight) {
+            IntDoubleMap counts = builder.existingRow(row);
+            if (counts == null) {
+                counts = builder.row(row);
+                bytes += BYTES_PER_MAP + (long) BYTES_PER_SLOT * counts.capacity();
+            }
+            int before = counts.capacity();
+            counts.addTo(column, weight);
+            bytes += (long) BYTES_PER_SLOT * (counts.capacity() - before);
+        }
+
+        /**
+         * Write all counts held so far to a new run, sorted by row and column, and start over
+         */
+        void spill() throws IOException {
+            if (bytes == 0) return;
+            File file = File.createTempFile("coocc", ".run", tempDirectory.toFile());
+            runs.add(file);
+            int[] columns = new int[0];
+            double[] values = new double[0];
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    1 << 16))) {
+                for (int row = 0; row < vocabulary.size(); row++) {
+                    IntDoubleMap counts = builder.existingRow(row);
+                    if (counts == null) continue;
+                    if (columns.length < counts.size()) {
+                        columns = new int[counts.size()];
+                        values = new double[counts.size()];
+                    }
+                    counts.toSortedArrays(columns, values);
+                    for (int i = 0; i < counts.size(); i++) {
+                        out.writeInt(row);
+                        out.writeInt(columns[i]);
+                        out.writeDouble(values[i]);
+                    }
+                }
+            }
+            builder = new CooccMatrix.Builder(vocabulary);
+            bytes = 0;
+        }
+    }
+
+    /**
+     * One worker's counts, with its own vocabulary
+     */
+    private class Shard {
+        final CooccVectorSpace space = new CooccVectorSpace();
+        final CooccMatrix.Builder builder = new CooccMatrix.Builder(space);
+        final boolean countPairs;
+        long[] counts = new long[1 << 10];
+        long tokens;
+        private int[] ids = new int[64];
+
+        /**
+         * @param countPairs false to count only the vocabulary
+         */
+        Shard(boolean countPairs) {
+            this.countPairs = countPairs;
+        }
+
+        void countFile(File file) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    countLine(line);
+                }
+            }
+        }
+
+        void countLine(String line) {
+            String[] words = tokenizer.apply(line);
+            if (ids.length < words.length) ids = new int[Math.max(words.length, 2 * ids.length)];
+            int n = 0;
+            for (String word : words) {
+                if (word.isEmpty()) continue;
+                int id = space.addWord(word);
+                if (id >= counts.length) counts = Arrays.copyOf(counts, 2 * counts.length);
+                counts[id]++;
+                ids[n++] = id;
+            }
+            tokens += n;
+            if (!countPairs) return;
+            for (int i = 0; i < n; i++) {
+                IntDoubleMap row = builder.row(ids[i]);
+                for (int j = i + 1; j < n && j <= i + window; j++) {
+                    double weight = distanceWeighting ? 1.0 / (j - i) : 1;
+                    row.addTo(ids[j], weight);
+                    builder.row(ids[j]).addTo(ids[i], weight);
+                }
+            }
+        }
+    }
+}
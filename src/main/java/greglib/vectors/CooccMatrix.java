@@ -0,0 +1,717 @@
+package greglib.vectors;
+
+import greglib.util.IntDoubleMap;
+import greglib.util.Threading;
+import greglib.util.TopKHeap;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * An immutable co-occurrence matrix in compressed sparse row form: row pointers, then the column indices and values
+ * of every row's entries, sorted by column. Rows and columns both index the words of a CooccVectorSpace.
+ * Build one with a Builder, or open one saved with save().
+ *
+ * Columns and values are held in chunks of up to 2^27 entries, so the same code runs over heap arrays and over
+ * a memory-mapped file, and the number of entries isn't limited by the size of a single array or mapping.
+ *
+ * FILE FORMAT (all little-endian):
+ *      header (96 bytes):  8-byte magic "GREGCSR\0", int version, int rows, int columns, int flags (reserved),
+ *                          long entries, long row pointer offset, long column offset, long value offset,
+ *                          long vocabulary offset, long file length, 16 bytes reserved
+ *      long[rows + 1] row pointers, int[entries] columns, double[entries] values (8-byte aligned),
+ *      then the vocabulary: one UTF-8 word per line, in index order
+ */
+public class CooccMatrix {
+
+    private static final Logger LOGGER = Logger.getLogger(CooccMatrix.class.getName());
+
+    private static final byte[] MAGIC = "GREGCSR\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 96;
+    private static final int CHUNK_BITS = 27;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+    // rows per task when multiplying in parallel
+    private static final int MULTIPLY_GRAIN = 1 << 12;
+
+    private final CooccVectorSpace space;
+    private final int rows;
+    private final int columns;
+    private final long[] rowPointers;
+    private final IntBuffer[] columnChunks;
+    private final DoubleBuffer[] valueChunks;
+    private volatile double[] norms;
+
+    private CooccMatrix(CooccVectorSpace space, int rows, int columns, long[] rowPointers, IntBuffer[] columnChunks,
+                        DoubleBuffer[] valueChunks) {
+        this.space = space;
+        this.rows = rows;
+        this.columns = columns;
+        this.rowPointers = rowPointers;
+        this.columnChunks = columnChunks;
+        this.valueChunks = valueChunks;
+    }
+
+    public CooccVectorSpace getSpace() {
+        return space;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public long nonZeroCount() {
+        return rowPointers[rows];
+    }
+
+    /**
+     * @return the number of stored entries in a row
+     */
+    public int rowLength(int row) {
+        return (int) (rowPointers[row + 1] - rowPointers[row]);
+    }
+
+    private int column(long entry) {
+        return columnChunks[(int) (entry >>> CHUNK_BITS)].get((int) (entry & CHUNK_MASK));
+    }
+
+    private double value(long entry) {
+        return valueChunks[(int) (entry >>> CHUNK_BITS)].get((int) (entry & CHUNK_MASK));
+    }
+
+    public double get(int row, int column) {
+        long low = rowPointers[row];
+        long high = rowPointers[row + 1] - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            int c = column(middle);
+            if (c < column) {
+                low = middle + 1;
+            } else if (c > column) {
+                high = middle - 1;
+            } else {
+                return value(middle);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return a (frozen) copy of a row as a CooccVector
+     */
+    public CooccVector getRow(int row) {
+        int length = rowLength(row);
+        int[] indices = new int[length];
+        double[] values = new double[length];
+        long start = rowPointers[row];
+        for (int i = 0; i < length; i++) {
+            indices[i] = column(start + i);
+            values[i] = value(start + i);
+        }
+        return new CooccVector(space, indices, values);
+    }
+
+    /**
+     * Dot product of two rows, as a merge join over their sorted columns
+     */
+    public double rowDot(int a, int b) {
+        long i = rowPointers[a];
+        long iEnd = rowPointers[a + 1];
+        long j = rowPointers[b];
+        long jEnd = rowPointers[b + 1];
+        double sum = 0;
+        while (i < iEnd && j < jEnd) {
+            int ci = column(i);
+            int cj = column(j);
+            if (ci == cj) {
+                sum += value(i++) * value(j++);
+            } else if (ci < cj) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Dot product of a row with a dense vector
+     */
+    public double rowDot(int row, double[] x) {
+        double sum = 0;
+        long end = rowPointers[row + 1];
+        for (long entry = rowPointers[row]; entry < end; ) {
+            int chunk = (int) (entry >>> CHUNK_BITS);
+            int from = (int) (entry & CHUNK_MASK);
+            int to = (int) Math.min(CHUNK_SIZE, from + (end - entry));
+            IntBuffer chunkColumns = columnChunks[chunk];
+            DoubleBuffer chunkValues = valueChunks[chunk];
+            for (int k = from; k < to; k++) {
+                sum += chunkValues.get(k) * x[chunkColumns.get(k)];
+            }
+            entry += to - from;
+        }
+        return sum;
+    }
+
+    public double rowNorm(int row) {
+        return rowNorms()[row];
+    }
+
+    /**
+     * @return the Euclidean norm of every row (computed on first use)
+     */
+    public double[] rowNorms() {
+        double[] result = norms;
+        if (result == null) {
+            result = new double[rows];
+            for (int row = 0; row < rows; row++) {
+                double sum = 0;
+                for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                    double x = value(entry);
+                    sum += x * x;
+                }
+                result[row] = Math.sqrt(sum);
+            }
+            norms = result;
+        }
+        return result;
+    }
+
+    /**
+     * Sparse matrix times dense vector, y = Ax, with rows split across the shared pool
+     * @param x vector of columns() values
+     * @param y vector to hold rows() results
+     */
+    public void multiply(double[] x, double[] y) {
+        multiply(x, 1, y);
+    }
+
+    /**
+     * Sparse matrix times dense matrix, Y = AX, with rows split across the shared pool
+     * @param x columns() x width matrix, row-major
+     * @param width the number of columns of X and Y
+     * @param y rows() x width matrix to hold the result, row-major
+     */
+    public void multiply(double[] x, int width, double[] y) {
+        if (x.length < (long) columns * width || y.length < (long) rows * width) {
+            throw new IllegalArgumentException("Dense matrices are too small");
+        }
+        Threading.getPool().invoke(new MultiplyTask(x, width, y, 0, rows));
+    }
+
+    private class MultiplyTask extends RecursiveAction {
+        private final double[] x;
+        private final int width;
+        private final double[] y;
+        private final int begin;
+        private final int end;
+
+        MultiplyTask(double[] x, int width, double[] y, int begin, int end) {
+            this.x = x;
+            this.width = width;
+            this.y = y;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= Math.max(1, MULTIPLY_GRAIN / width)) {
+                for (int row = begin; row < end; row++) {
+                    if (width == 1) {
+                        y[row] = rowDot(row, x);
+                    } else {
+                        multiplyRow(row);
+                    }
+                }
+                return;
+            }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new MultiplyTask(x, width, y, begin, middle), new MultiplyTask(x, width, y, middle, end));
+        }
+
+        private void multiplyRow(int row) {
+            int out = row * width;
+            Arrays.fill(y, out, out + width, 0);
+            for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                double value = value(entry);
+                int in = column(entry) * width;
+                for (int t = 0; t < width; t++) {
+                    y[out + t] += value * x[in + t];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sum of every row
+     */
+    public double[] rowSums() {
+        double[] sums = new double[rows];
+        for (int row = 0; row < rows; row++) {
+            for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                sums[row] += value(entry);
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * @return the sum of every column
+     */
+    public double[] columnSums() {
+        double[] sums = new double[columns];
+        for (long entry = 0; entry < nonZeroCount(); entry++) {
+            sums[column(entry)] += value(entry);
+        }
+        return sums;
+    }
+
+    /**
+     * A function of a matrix entry, for transform()
+     */
+    public interface EntryFunction {
+        double apply(int row, int column, double value);
+    }
+
+    /**
+     * Make a new (heap) matrix by applying a function to every stored entry. Entries that become zero or NaN are
+     * dropped, so this can sparsify as well, e.g. for positive PMI.
+     */
+    public CooccMatrix transform(EntryFunction function) {
+        long nnz = nonZeroCount();
+        long[] newPointers = new long[rows + 1];
+        int[][] columnArrays = newColumnArrays(nnz);
+        double[][] valueArrays = newValueArrays(nnz);
+        long kept = 0;
+        for (int row = 0; row < rows; row++) {
+            for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                int column = column(entry);
+                double value = function.apply(row, column, value(entry));
+                if (value == 0 || value != value) continue;
+                setEntry(columnArrays, valueArrays, kept++, column, value);
+            }
+            newPointers[row + 1] = kept;
+        }
+        if (kept < nnz) {
+            // copy into arrays of the right size rather than holding on to the space of dropped entries
+            int[][] keptColumns = newColumnArrays(kept);
+            double[][] keptValues = newValueArrays(kept);
+            for (int chunk = 0; chunk < keptColumns.length; chunk++) {
+                System.arraycopy(columnArrays[chunk], 0, keptColumns[chunk], 0, keptColumns[chunk].length);
+                System.arraycopy(valueArrays[chunk], 0, keptValues[chunk], 0, keptValues[chunk].length);
+            }
+            columnArrays = keptColumns;
+            valueArrays = keptValues;
+        }
+        return fromArrays(space, rows, columns, newPointers, columnArrays, valueArrays);
+    }
+
+    /**
+     * @return a new (heap) matrix holding the transpose of this one
+     */
+    public CooccMatrix transpose() {
+        long nnz = nonZeroCount();
+        long[] newPointers = new long[columns + 1];
+        for (long entry = 0; entry < nnz; entry++) {
+            newPointers[column(entry) + 1]++;
+        }
+        for (int column = 0; column < columns; column++) {
+            newPointers[column + 1] += newPointers[column];
+        }
+        long[] next = Arrays.copyOf(newPointers, columns);
+        int[][] columnArrays = newColumnArrays(nnz);
+        double[][] valueArrays = newValueArrays(nnz);
+        // rows are visited in order, so each transposed row comes out sorted
+        for (int row = 0; row < rows; row++) {
+            for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                setEntry(columnArrays, valueArrays, next[column(entry)]++, row, value(entry));
+            }
+        }
+        return fromArrays(space, columns, rows, newPointers, columnArrays, valueArrays);
+    }
+
+    private static int[][] newColumnArrays(long nnz) {
+        int[][] arrays = new int[(int) ((nnz + CHUNK_SIZE - 1) >>> CHUNK_BITS)][];
+        for (int chunk = 0; chunk < arrays.length; chunk++) {
+            arrays[chunk] = new int[(int) Math.min(CHUNK_SIZE, nnz - ((long) chunk << CHUNK_BITS))];
+        }
+        return arrays;
+    }
+
+    private static double[][] newValueArrays(long nnz) {
+        double[][] arrays = new double[(int) ((nnz + CHUNK_SIZE - 1) >>> CHUNK_BITS)][];
+        for (int chunk = 0; chunk < arrays.length; chunk++) {
+            arrays[chunk] = new double[(int) Math.min(CHUNK_SIZE, nnz - ((long) chunk << CHUNK_BITS))];
+        }
+        return arrays;
+    }
+
+    private static void setEntry(int[][] columnArrays, double[][] valueArrays, long entry, int column, double value) {
+        int chunk = (int) (entry >>> CHUNK_BITS);
+        columnArrays[chunk][(int) (entry & CHUNK_MASK)] = column;
+        valueArrays[chunk][(int) (entry & CHUNK_MASK)] = value;
+    }
+
+    private static CooccMatrix fromArrays(CooccVectorSpace space, int rows, int columns, long[] rowPointers,
+                                          int[][] columnArrays, double[][] valueArrays) {
+        IntBuffer[] columnChunks = new IntBuffer[columnArrays.length];
+        DoubleBuffer[] valueChunks = new DoubleBuffer[valueArrays.length];
+        for (int chunk = 0; chunk < columnArrays.length; chunk++) {
+            columnChunks[chunk] = IntBuffer.wrap(columnArrays[chunk]);
+            valueChunks[chunk] = DoubleBuffer.wrap(valueArrays[chunk]);
+        }
+        return new CooccMatrix(space, rows, columns, rowPointers, columnChunks, valueChunks);
+    }
+
+    /**
+     * Cosine similarity of one row with every row, as a single sparse matrix-vector product
+     * @return rows() similarities (NaN for empty rows)
+     */
+    public double[] similarities(int row) {
+        double[] dense = new double[columns];
+        for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+            dense[column(entry)] = value(entry);
+        }
+        double[] scores = new double[rows];
+        multiply(dense, scores);
+        double[] rowNorms = rowNorms();
+        double norm = rowNorms[row];
+        for (int i = 0; i < rows; i++) {
+            scores[i] = scores[i] / norm / rowNorms[i];
+        }
+        return scores;
+    }
+
+    /**
+     * Find the k rows most similar (by cosine) to a row, not counting the row itself
+     * @return a sorted heap of rows and similarities, best first
+     */
+    public TopKHeap topSimilar(int row, int k) {
+        double[] scores = similarities(row);
+        TopKHeap top = new TopKHeap(Math.min(k, Math.max(0, rows - 1)));
+        for (int i = 0; i < rows; i++) {
+            if (i != row) top.offer(i, scores[i]);
+        }
+        return top.sort();
+    }
+
+    /**
+     * Get the n words whose rows are most similar to a word's row
+     * @return words and their cosine similarities, most similar first (empty if the word has no row)
+     */
+    public Map<String, Double> getTopNSimilar(String word, int n) {
+        Map<String, Double> mostSimilar = new LinkedHashMap<>();
+        Integer row = space.getIndex(word);
+        if (row == null || row >= rows) return mostSimilar;
+        TopKHeap top = topSimilar(row, n);
+        for (int i = 0; i < top.size(); i++) {
+            mostSimilar.put(space.getWord(top.getIndex(i)), top.getScore(i));
+        }
+        return mostSimilar;
+    }
+
+    /**
+     * Write the matrix and its vocabulary to a file that open() can map
+     * @param filename the file to create (overwritten if it exists)
+     */
+    public void save(String filename) throws IOException {
+        try (CsrWriter writer = new CsrWriter(filename, space, rows, columns)) {
+            for (int row = 0; row < rows; row++) {
+                for (long entry = rowPointers[row]; entry < rowPointers[row + 1]; entry++) {
+                    writer.add(row, column(entry), value(entry));
+                }
+            }
+        }
+        LOGGER.info("Saved " + rows + "x" + columns + " matrix with " + nonZeroCount() + " entries to " + filename);
+    }
+
+    /**
+     * Writes a matrix file from entries streamed in row-major order, so a matrix can be written without ever being
+     * held in memory. Values go to a temporary file next to the output until the number of entries is known.
+     */
+    static class CsrWriter implements Closeable {
+        private final CooccVectorSpace space;
+        private final int rows;
+        private final int columns;
+        private final long[] rowPointers;
+        private final FileChannel channel;
+        private final FileChannel valuesChannel;
+        private final ByteBuffer columnBuffer;
+        private final ByteBuffer valueBuffer;
+        private int row;
+        private int lastColumn = -1;
+        private long nnz;
+
+        CsrWriter(String filename, CooccVectorSpace space, int rows, int columns) throws IOException {
+            this.space = space;
+            this.rows = rows;
+            this.columns = columns;
+            rowPointers = new long[rows + 1];
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            valuesChannel = FileChannel.open(Paths.get(filename + ".values"), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            columnBuffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            valueBuffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(columnOffset());
+        }
+
+        private long columnOffset() {
+            return HEADER_BYTES + 8L * (rows + 1);
+        }
+
+        /**
+         * Add an entry; entries must come in increasing order of row, then column
+         */
+        void add(int row, int column, double value) throws IOException {
+            if (row < this.row || (row == this.row && column <= lastColumn) || row >= rows || column >= columns) {
+                throw new IllegalArgumentException("Entry (" + row + ", " + column + ") is out of order or range");
+            }
+            for (; this.row < row; this.row++) {
+                rowPointers[this.row + 1] = nnz;
+            }
+            lastColumn = column;
+            if (columnBuffer.remaining() < 4) drain(channel, columnBuffer);
+            columnBuffer.putInt(column);
+            if (valueBuffer.remaining() < 8) drain(valuesChannel, valueBuffer);
+            valueBuffer.putDouble(value);
+            nnz++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (; row < rows; row++) {
+                    rowPointers[row + 1] = nnz;
+                }
+                drain(channel, columnBuffer);
+                drain(valuesChannel, valueBuffer);
+                long valueOffset = (channel.position() + 7) / 8 * 8;
+                for (long copied = 0, length = valuesChannel.size(); copied < length; ) {
+                    copied += valuesChannel.transferTo(copied, length - copied, channel.position(valueOffset + copied));
+                }
+                long vocabularyOffset = valueOffset + 8 * nnz;
+                channel.position(vocabularyOffset);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel),
+                        StandardCharsets.UTF_8));
+                for (int i = 0; i < space.size(); i++) {
+                    writer.write(space.getWord(i));
+                    writer.write('\n');
+                }
+                writer.flush();
+                long fileLength = channel.position();
+
+                ByteBuffer header = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC).putInt(VERSION).putInt(rows).putInt(columns).putInt(0);
+                header.putLong(nnz).putLong(HEADER_BYTES).putLong(columnOffset()).putLong(valueOffset)
+                        .putLong(vocabularyOffset).putLong(fileLength);
+                ((Buffer) header).position(HEADER_BYTES);
+                channel.position(0);
+                for (long pointer : rowPointers) {
+                    if (header.remaining() < 8) drain(channel, header);
+                    header.putLong(pointer);
+                }
+                drain(channel, header);
+            } finally {
+                valuesChannel.close();
+                channel.close();
+            }
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    /**
+     * Open a matrix saved by save(). Columns and values are read from the mapped file as they are used; row
+     * pointers and the vocabulary are read into memory.
+     */
+    public static CooccMatrix open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) throw new IOException(filename + " is too short to be a matrix");
+            }
+            byte[] magic = new byte[MAGIC.length];
+            ((Buffer) header).flip();
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(filename + " is not a co-occurrence matrix");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported matrix version " + version);
+            int rows = header.getInt();
+            int columns = header.getInt();
+            header.getInt();
+            long nnz = header.getLong();
+            long pointerOffset = header.getLong();
+            long columnOffset = header.getLong();
+            long valueOffset = header.getLong();
+            long vocabularyOffset = header.getLong();
+            if (channel.size() != header.getLong()) {
+                throw new IOException("Matrix file " + filename + " is truncated or corrupt");
+            }
+
+            long[] rowPointers = new long[rows + 1];
+            ByteBuffer pointers = channel.map(FileChannel.MapMode.READ_ONLY, pointerOffset, 8L * (rows + 1))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            pointers.asLongBuffer().get(rowPointers);
+
+            int nChunks = (int) ((nnz + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+            IntBuffer[] columnChunks = new IntBuffer[nChunks];
+            DoubleBuffer[] valueChunks = new DoubleBuffer[nChunks];
+            for (int chunk = 0; chunk < nChunks; chunk++) {
+                long first = (long) chunk << CHUNK_BITS;
+                long length = Math.min(CHUNK_SIZE, nnz - first);
+                columnChunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, columnOffset + 4 * first, 4 * length)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                valueChunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, valueOffset + 8 * first, 8 * length)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+
+            CooccVectorSpace space = new CooccVectorSpace();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    Channels.newInputStream(channel.position(vocabularyOffset)), StandardCharsets.UTF_8));
+            for (String word = reader.readLine(); word != null; word = reader.readLine()) {
+                space.addWord(word);
+            }
+            LOGGER.info("Opened " + rows + "x" + columns + " matrix with " + nnz + " entries");
+            return new CooccMatrix(space, rows, columns, rowPointers, columnChunks, valueChunks);
+        }
+    }
+
+    /**
+     * Collects co-occurrence increments in a primitive map per row, then freezes them into a CooccMatrix
+     */
+    public static class Builder {
+
+        private final CooccVectorSpace space;
+        private final List<IntDoubleMap> rows = new ArrayList<>();
+
+        public Builder() {
+            this(new CooccVectorSpace());
+        }
+
+        /**
+         * @param space the vocabulary for rows and columns, which new words will be added to
+         */
+        public Builder(CooccVectorSpace space) {
+            this.space = space;
+        }
+
+        public CooccVectorSpace getSpace() {
+            return space;
+        }
+
+        /**
+         * The counts collected for a row, created if necessary. Once reserveRows has made room for a row, different
+         * threads may fill different rows.
+         */
+        IntDoubleMap row(int row) {
+            reserveRows(row + 1);
+            IntDoubleMap map = rows.get(row);
+            if (map == null) {
+                map = new IntDoubleMap();
+                rows.set(row, map);
+            }
+            return map;
+        }
+
+        /**
+         * @return the counts collected for a row, or null if there are none
+         */
+        IntDoubleMap existingRow(int row) {
+            return row < rows.size() ? rows.get(row) : null;
+        }
+
+        void reserveRows(int nRows) {
+            while (rows.size() < nRows) {
+                rows.add(null);
+            }
+        }
+
+        public void increment(int row, int column, double weight) {
+            row(row).addTo(column, weight);
+        }
+
+        /**
+         * Increment the count for a pair of words, adding them to the vocabulary if necessary
+         */
+        public void increment(String rowWord, String columnWord, double weight) {
+            increment(space.addWord(rowWord), space.addWord(columnWord), weight);
+        }
+
+        /**
+         * Add every entry of a vector to a row
+         */
+        public void add(int row, CooccVector vector) {
+            IntDoubleMap map = row(row);
+            for (int index : vector.indices()) {
+                map.addTo(index, vector.get(index));
+            }
+        }
+
+        /**
+         * Freeze everything collected so far into a matrix with a row and a column for every word in the space
+         * @throws IllegalStateException if a row or column index isn't the index of a word in the space
+         */
+        public CooccMatrix build() {
+            int nRows = space.size();
+            if (rows.size() > nRows) throw new IllegalStateException("Row " + (rows.size() - 1) + " is not in the space");
+            long[] rowPointers = new long[nRows + 1];
+            for (int row = 0; row < nRows; row++) {
+                IntDoubleMap map = row < rows.size() ? rows.get(row) : null;
+                rowPointers[row + 1] = rowPointers[row] + (map == null ? 0 : map.size());
+            }
+            long nnz = rowPointers[nRows];
+            int[][] columnArrays = newColumnArrays(nnz);
+            double[][] valueArrays = newValueArrays(nnz);
+            int[] sortedColumns = new int[0];
+            double[] sortedValues = new double[0];
+            for (int row = 0; row < rows.size(); row++) {
+                IntDoubleMap map = rows.get(row);
+                if (map == null) continue;
+                if (sortedColumns.length < map.size()) {
+                    sortedColumns = new int[map.size()];
+                    sortedValues = new double[map.size()];
+                }
+                map.toSortedArrays(sortedColumns, sortedValues);
+                long entry = rowPointers[row];
+                for (int i = 0; i < map.size(); i++, entry++) {
+                    setEntry(columnArrays, valueArrays, entry, sortedColumns[i], sortedValues[i]);
+                }
+                if (map.size() > 0 && sortedColumns[map.size() - 1] >= nRows) {
+                    throw new IllegalStateException("Column " + sortedColumns[map.size() - 1] + " is not in the space");
+                }
+            }
+            return fromArrays(space, nRows, nRows, rowPointers, columnArrays, valueArrays);
+        }
+    }
+}
@@ -1,38 +1,96 @@
 package greglib.vectors;
 
+import greglib.util.IntDoubleMap;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Function;
 
 /**
  * Simple class for handling sparse word co-occurrence vectors (using Double for values to deal with weighting, etc.)
  *
+ * Entries are kept in a primitive open-addressing map while the vector is being built. freeze() converts them to
+ * sorted parallel arrays, which are smaller and let dot products between frozen vectors run as a merge join.
+ * Changes that only rescale values keep a vector frozen; adding new entries thaws it again.
+ *
  * Created by gpfinley on 4/14/16.
  */
 public class CooccVector implements Serializable {
 
+    private static final long serialVersionUID = 4318124409541507612L;
+
+    // only set while (de)serializing, in the HashMap form older versions of this class used
     private Map<Integer, Double> vector;
 
     public final CooccVectorSpace space;
 
+    // exactly one of these representations is in use: the map while building, the sorted arrays once frozen
+    private transient IntDoubleMap entries;
+    private transient int[] indices;
+    private transient double[] values;
+
     public CooccVector(CooccVectorSpace space) {
-        vector = new HashMap<>();
+        entries = new IntDoubleMap();
         this.space = space;
     }
 
     public CooccVector(CooccVector orig) {
         this.space = orig.space;
-        vector = new HashMap<>();
-        for(Map.Entry<Integer, Double> e : orig.vector.entrySet()) {
-            vector.put(e.getKey(), e.getValue());
+        if (orig.isFrozen()) {
+            indices = Arrays.copyOf(orig.indices, orig.indices.length);
+            values = Arrays.copyOf(orig.values, orig.values.length);
+        } else {
+            entries = new IntDoubleMap(orig.entries);
+        }
+    }
+
+    /**
+     * A frozen vector over sorted parallel arrays, which are used directly
+     */
+    CooccVector(CooccVectorSpace space, int[] indices, double[] values) {
+        this.space = space;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Convert to sorted arrays. Does nothing if the vector is already frozen.
+     * @return this vector
+     */
+    public CooccVector freeze() {
+        if (entries != null) {
+            indices = new int[entries.size()];
+            values = new double[entries.size()];
+            entries.toSortedArrays(indices, values);
+            entries = null;
+        }
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return entries == null;
+    }
+
+    private void thaw() {
+        if (entries == null) {
+            entries = new IntDoubleMap(indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                entries.put(indices[i], values[i]);
+            }
+            indices = null;
+            values = null;
         }
     }
 
     public double get(int i) {
-        return vector.getOrDefault(i, 0.0);
+        if (entries != null) return entries.get(i);
+        int position = Arrays.binarySearch(indices, i);
+        return position < 0 ? 0 : values[position];
     }
 
     public int size() {
@@ -40,51 +98,144 @@ public class CooccVector implements Serializable {
     }
 
     /**
-     * Increment the count for this word (and update the dictionary in the associated space if necessary)
+     * @return the number of stored (usually nonzero) entries
+     */
+    public int nonZeroCount() {
+        return entries != null ? entries.size() : indices.length;
+    }
+
+    /**
+     * Increment the count for this word (and update the dictionary in the associated space if necessary).
+     * In a hashed space, the weight is multiplied by the word's hashed sign.
      */
     public void incrementAndAdd(String word, double weight) {
-        space.addWord(word);
-        increment(word, weight);
+        increment(space.addWord(word), space.sign(word) * weight);
     }
 
     /**
-     * Increment the count for this word, but don't add the word to the dictionary
+     * Increment the count for this word, but don't add the word to the dictionary.
+     * In a hashed space, the weight is multiplied by the word's hashed sign.
      * @param word
      * @param weight
      */
     public void increment(String word, double weight) {
-        Integer index = space.getIndex(word);
-        if(index == null) return;
-        if(vector.containsKey(index)) {
-            vector.put(index, vector.get(index) + weight);
-        } else {
-            vector.put(index, weight);
-        }
+        int index = space.indexOf(word);
+        if(index < 0) return;
+        increment(index, space.sign(word) * weight);
+    }
+
+    /**
+     * Increment the count at an index of the associated space
+     */
+    public void increment(int index, double weight) {
+        thaw();
+        entries.addTo(index, weight);
     }
 
+    /**
+     * @return the indices of all stored entries, as a new set
+     */
     public Set<Integer> getNonZeros() {
-        return vector.keySet();
+        Set<Integer> nonZeros = new TreeSet<>();
+        for (int index : indices()) {
+            nonZeros.add(index);
+        }
+        return nonZeros;
+    }
+
+    /**
+     * @return the indices of all stored entries, in increasing order
+     */
+    public int[] indices() {
+        if (entries == null) return Arrays.copyOf(indices, indices.length);
+        int[] sorted = new int[entries.size()];
+        entries.toSortedArrays(sorted, new double[sorted.length]);
+        return sorted;
+    }
+
+    /**
+     * Receives the entries of a vector, in no particular order unless the vector is frozen
+     */
+    interface EntryConsumer {
+        void accept(int index, double value);
+    }
+
+    /**
+     * Pass every stored entry to a consumer without copying
+     */
+    void forEachEntry(EntryConsumer consumer) {
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    consumer.accept(entries.keyAt(slot), entries.valueAt(slot));
+                }
+            }
+        } else {
+            for (int i = 0; i < indices.length; i++) {
+                consumer.accept(indices[i], values[i]);
+            }
+        }
     }
 
     public void normalize() {
         double mag = mag();
-        for(int k : vector.keySet()) {
-            vector.put(k, vector.get(k)/mag);
-        }
+        scalarMultiply(1 / mag);
     }
 
     public double mag() {
         double sqsum = 0;
-        for(double x : vector.values()) {
-            sqsum += x * x;
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    double x = entries.valueAt(slot);
+                    sqsum += x * x;
+                }
+            }
+        } else {
+            for (double x : values) {
+                sqsum += x * x;
+            }
         }
         return Math.sqrt(sqsum);
     }
 
     public double dot(CooccVector other) {
+        if (entries == null && other.entries == null) {
+            return mergeDot(indices, values, other.indices, other.values);
+        }
+        // probe the vector with more entries for each entry of the one with fewer
+        if (nonZeroCount() > other.nonZeroCount()) {
+            return other.dot(this);
+        }
         double sum = 0;
-        for(int k : vector.keySet()) {
-            sum += vector.get(k) * other.get(k);
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    sum += entries.valueAt(slot) * other.get(entries.keyAt(slot));
+                }
+            }
+        } else {
+            for (int i = 0; i < indices.length; i++) {
+                sum += values[i] * other.get(indices[i]);
+            }
+        }
+        return sum;
+    }
+
+    private static double mergeDot(int[] aIndices, double[] aValues, int[] bIndices, double[] bValues) {
+        double sum = 0;
+        int i = 0;
+        int j = 0;
+        while (i < aIndices.length && j < bIndices.length) {
+            int a = aIndices[i];
+            int b = bIndices[j];
+            if (a == b) {
+                sum += aValues[i++] * bValues[j++];
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
         }
         return sum;
     }
@@ -95,31 +246,41 @@ public class CooccVector implements Serializable {
         return sumVec;
     }
 
+    /**
+     * @return a new vector holding this vector minus the other
+     */
     public CooccVector difference(CooccVector other) {
         CooccVector diffVec = new CooccVector(this);
-        for(int k : other.vector.keySet()) {
-            if(vector.get(k) == null) {
-                vector.put(k, other.get(k));
-            } else {
-                vector.put(k, other.get(k) - vector.get(k));
-            }
-        }
+        diffVec.add(other, -1);
         return diffVec;
     }
 
     public void add(CooccVector other) {
-        for(int k : other.vector.keySet()) {
-            if(vector.get(k) == null) {
-                vector.put(k, other.get(k));
-            } else {
-                vector.put(k, other.get(k) + vector.get(k));
+        add(other, 1);
+    }
+
+    private void add(CooccVector other, double scale) {
+        thaw();
+        if (other.entries != null) {
+            for (int slot = 0; slot < other.entries.capacity(); slot++) {
+                if (other.entries.isOccupied(slot)) {
+                    entries.addTo(other.entries.keyAt(slot), scale * other.entries.valueAt(slot));
+                }
+            }
+        } else {
+            for (int i = 0; i < other.indices.length; i++) {
+                entries.addTo(other.indices[i], scale * other.values[i]);
             }
         }
     }
 
     public void scalarMultiply(double s) {
-        for(int k : vector.keySet()) {
-            vector.put(k, vector.get(k) * s);
+        if (entries != null) {
+            entries.transformValues(x -> x * s);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] *= s;
+            }
         }
     }
 
@@ -129,42 +290,95 @@ public class CooccVector implements Serializable {
 
     @Override
     public String toString() {
-        return vector.toString();
+        return toMap().toString();
     }
 
     public void applyElementwise(Function<Double, Double> function) {
-        vector.forEach((i, d) -> vector.put(i, function.apply(d)));
+        if (entries != null) {
+            entries.transformValues(function::apply);
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = function.apply(values[i]);
+            }
+        }
     }
 
     public void hadamard(CooccVector other) {
-        vector.forEach((i, d) -> vector.put(i, d * other.get(i)));
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    entries.put(entries.keyAt(slot), entries.valueAt(slot) * other.get(entries.keyAt(slot)));
+                }
+            }
+        } else {
+            for (int i = 0; i < values.length; i++) {
+                values[i] *= other.get(indices[i]);
+            }
+        }
+    }
+
+    private Map<Integer, Double> toMap() {
+        Map<Integer, Double> map = new HashMap<>();
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    map.put(entries.keyAt(slot), entries.valueAt(slot));
+                }
+            }
+        } else {
+            for (int i = 0; i < indices.length; i++) {
+                map.put(indices[i], values[i]);
+            }
+        }
+        return map;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("vector", toMap());
+        fields.put("space", space);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        entries = new IntDoubleMap(vector.size());
+        vector.forEach(entries::put);
+        vector = null;
     }
 
     // SERIALIZATION FORMAT: int map size, then int-double pairs, in binary
 
     public void serialize(OutputStream out) throws IOException {
-        byte[] bytes = ByteBuffer.allocate(4).putInt(vector.size()).array();
-        out.write(bytes);
-        for (Map.Entry<Integer, Double> entry : vector.entrySet()) {
-            byte[] intBytes = ByteBuffer.allocate(4).putInt(entry.getKey()).array();
-            byte[] doubleBytes = ByteBuffer.allocate(8).putDouble(entry.getValue()).array();
-            out.write(intBytes);
-            out.write(doubleBytes);
+        int n = nonZeroCount();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 12 * n);
+        buffer.putInt(n);
+        if (entries != null) {
+            for (int slot = 0; slot < entries.capacity(); slot++) {
+                if (entries.isOccupied(slot)) {
+                    buffer.putInt(entries.keyAt(slot)).putDouble(entries.valueAt(slot));
+                }
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                buffer.putInt(indices[i]).putDouble(values[i]);
+            }
         }
+        out.write(buffer.array());
     }
 
     public static CooccVector deserialize(InputStream in, CooccVectorSpace space) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int size = data.readInt();
+        if (size < 0) throw new IOException("Bad vector size " + size);
+        byte[] bytes = new byte[12 * size];
+        data.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
         CooccVector vector = new CooccVector(space);
-        byte[] four = new byte[4];
-        byte[] eight = new byte[8];
-        in.read(four);
-        int size = ByteBuffer.wrap(four).getInt();
+        vector.entries = new IntDoubleMap(size);
         for (int i=0; i<size; i++) {
-            in.read(four);
-            in.read(eight);
-            int index = ByteBuffer.wrap(four).getInt();
-            double value = ByteBuffer.wrap(eight).getDouble();
-            vector.vector.put(index, value);
+            int index = buffer.getInt();
+            vector.entries.put(index, buffer.getDouble());
         }
         return vector;
     }
@@ -52,19 +52,11 @@ public class CooccVectorArray implements Serializable {
     }
 
     public double mag() {
-        double sqsum = 0;
-        for(float x : vector) {
-            sqsum += x * x;
-        }
-        return Math.sqrt(sqsum);
+        return Math.sqrt(VectorKernels.squaredNorm(vector, 0, vector.length));
     }
 
     public double dot(CooccVectorArray other) {
-        double sum = 0;
-        for(int i=0; i<vector.length; i++) {
-            sum += vector[i] * other.get(i);
-        }
-        return sum;
+        return VectorKernels.dot(vector, 0, other.vector, 0, vector.length);
     }
 
     public CooccVectorArray sum(CooccVectorArray other) {
@@ -98,7 +90,7 @@ public class CooccVectorArray implements Serializable {
     }
 
     public double cosSim(CooccVectorArray other) {
-        return dot(other) / mag() / other.mag();
+        return VectorKernels.cosine(vector, 0, other.vector, 0, vector.length);
     }
 
     @Override
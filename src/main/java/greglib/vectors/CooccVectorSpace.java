@@ -8,51 +8,119 @@ import java.util.*;
 /**
  * Handles the dictionary for a word co-occurrence vector space
  *
+ * A hashed space (see hashed()) keeps no dictionary at all: every word maps to one of a fixed number of buckets by
+ * its hash, with a hashed sign of +1 or -1 that vectors apply to their increments so that collisions tend to cancel
+ * out rather than pile up. Words can't be looked up by index in a hashed space.
+ *
  * Created by gpfinley on 4/14/16.
  */
 public class CooccVectorSpace implements Serializable {
 
+    private static final long serialVersionUID = 1223769473861728480L;
+
     private Map<String, Integer> dictionary;
     private List<String> allWords;
+    // number of buckets in a hashed space, or 0 for a space with a dictionary
+    private int buckets;
 
     public CooccVectorSpace() {
         dictionary = new HashMap<>();
         allWords = new ArrayList<>();
     }
 
+    /**
+     * Create a space that hashes words into a fixed number of buckets instead of keeping a dictionary
+     * @param buckets the number of buckets, which is also the size of the space
+     */
+    public static CooccVectorSpace hashed(int buckets) {
+        if (buckets <= 0) throw new IllegalArgumentException("Need a positive number of buckets: " + buckets);
+        CooccVectorSpace space = new CooccVectorSpace();
+        space.dictionary = null;
+        space.allWords = null;
+        space.buckets = buckets;
+        return space;
+    }
+
+    public boolean isHashed() {
+        return buckets > 0;
+    }
+
+    private static long hash(String word) {
+        // String caches its hash code; mix it (MurmurHash3's 64-bit finalizer) so both bucket and sign are well spread
+        long h = word.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    private int bucket(String word) {
+        return (int) ((hash(word) >>> 1) % buckets);
+    }
+
+    /**
+     * @return the sign that a word's counts are multiplied by: always 1 unless this space is hashed
+     */
+    public int sign(String word) {
+        return buckets > 0 && (hash(word) & 1) != 0 ? -1 : 1;
+    }
+
     /**
      * Add a word to the dictionary, if necessary, and return its index
      * @param word
      * @return
      */
     public int addWord(String word) {
-        if(!dictionary.containsKey(word)) {
-            dictionary.put(word, dictionary.size());
+        if (buckets > 0) return bucket(word);
+        Integer index = dictionary.get(word);
+        if(index == null) {
+            index = allWords.size();
+            dictionary.put(word, index);
             allWords.add(word);
         }
-        return dictionary.get(word);
+        return index;
     }
 
     public Integer getIndex(String word) {
+        if (buckets > 0) return bucket(word);
         return dictionary.get(word);
     }
 
+    /**
+     * Like getIndex, without boxing
+     * @return the word's index (its bucket in a hashed space), or -1 if it isn't in the dictionary
+     */
+    public int indexOf(String word) {
+        if (buckets > 0) return bucket(word);
+        Integer index = dictionary.get(word);
+        return index == null ? -1 : index;
+    }
+
     public boolean hasWord(String word) {
+        if (buckets > 0) return true;
         return dictionary.containsKey(word);
     }
 
     public String getWord(int index) {
+        if (buckets > 0) throw new UnsupportedOperationException("A hashed space doesn't keep its words");
         return allWords.get(index);
     }
 
     public int size() {
+        if (buckets > 0) return buckets;
         return allWords.size();
     }
 
-    // very simple serialization
+    // very simple serialization: the number of words, then one word per line; or "hash" and the bucket count
 
     public void serialize(OutputStream out) throws IOException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out));
+        if (buckets > 0) {
+            writer.write("hash " + buckets + "\n");
+            writer.flush();
+            return;
+        }
         writer.write(String.valueOf(allWords.size()));
         writer.write("\n");
         for (String word : allWords) {
@@ -66,6 +134,9 @@ public class CooccVectorSpace implements Serializable {
         CooccVectorSpace space = new CooccVectorSpace();
         NonblockingBufferedReader reader = new NonblockingBufferedReader(in);
         String line = reader.readLine();
+        if (line.startsWith("hash ")) {
+            return hashed(Integer.parseInt(line.substring(5).trim()));
+        }
         int size = Integer.parseInt(line);
         for (int i=0; i<size; i++) {
             space.addWord(reader.readLine().trim());
@@ -2,37 +2,105 @@ package greglib.vectors;
 
 import greglib.phrases.Phrase;
 import greglib.util.Threading;
+import greglib.util.TopKHeap;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Represents a collection of terms (including phrases) and word embeddings for them
  * Created by gpfinley on 3/14/16.
  */
-public class Embeddings implements Iterable<String>, Serializable {
+public class Embeddings implements Iterable<String>, Serializable, Closeable {
 
-    // For looking up the index based on the word
-    private Map<String,Integer> dictionary;
-    // For finding the word based on the index
-    private List<String> terms;
-    private List<WordEmbedding> vectors;
+    private static final Logger LOGGER = Logger.getLogger(Embeddings.class.getName());
 
-    // Word frequency (from vocab.txt file)
-    private List<Integer> frequency;
+    // pinned to the value computed for the original layout, so previously serialized objects still load
+    private static final long serialVersionUID = 5196516616605286325L;
+
+    // Rows per task in parallel scans; smaller vocabularies are scanned on the calling thread
+    private static final int SCAN_GRAIN = 1 << 14;
+    // Batch queries score blocks of rows against blocks of queries, sized so both blocks stay in cache together
+    private static final int BATCH_ROW_BLOCK = 64;
+    private static final int BATCH_QUERY_BLOCK = 32;
+    // Product quantization trains codebooks on at most 256 vectors per centroid, for at most this many k-means rounds
+    private static final int PQ_TRAINING_SAMPLE = 256 * 256;
+    private static final int PQ_ITERATIONS = 25;
+
+    // Maps terms to indices and back
+    private Vocabulary vocabulary;
+    // All vectors, addressed by the same index as terms
+    private VectorStorage vectors;
+    // Exact vectors that a quantized storage reranks against, kept open (and closed) along with it; usually null
+    private transient VectorStorage exactVectors;
+
+    // Word frequency (from vocab.txt file), indexed like terms; may be longer than terms
+    private int[] frequency;
 
     private int dimensionality;
 
+    // Pool for parallel scans; the shared pool from Threading unless set
+    private transient ForkJoinPool pool;
+    // Optional (approximate) index that similarity queries go through instead of a full scan
+    private transient NearestNeighborIndex index;
+
     public Embeddings(int dimensionality) {
-        this.dimensionality = dimensionality;
-        dictionary = new HashMap<>();
-        terms = new ArrayList<>();
-        vectors = new ArrayList<>();
-        frequency = new ArrayList<>();
+        this(new ArrayVectorStorage(dimensionality));
+    }
+
+    /**
+     * @param dimensionality the length of every vector
+     * @param expectedSize how many terms will be added (used to size the vector storage)
+     */
+    public Embeddings(int dimensionality, int expectedSize) {
+        this(new ArrayVectorStorage(dimensionality, expectedSize));
+    }
+
+    /**
+     * Create an empty Embeddings object around an existing (empty) vector storage
+     * @param storage the storage that vectors will be added to
+     */
+    public Embeddings(VectorStorage storage) {
+        this.dimensionality = storage.dimensionality();
+        vocabulary = new Vocabulary();
+        vectors = storage;
+        frequency = new int[16];
+    }
+
+    /**
+     * Create an Embeddings object over storage that already holds all of its vectors
+     * @param terms the term for each row of the storage, in row order; no duplicates
+     * @param storage the vectors
+     */
+    public Embeddings(List<String> terms, VectorStorage storage) {
+        this(Vocabulary.of(terms), storage);
+    }
+
+    /**
+     * Create an Embeddings object over storage that already holds all of its vectors
+     * @param vocabulary the term for each row of the storage
+     * @param storage the vectors
+     */
+    public Embeddings(Vocabulary vocabulary, VectorStorage storage) {
+        if (vocabulary.size() != storage.size()) {
+            throw new IllegalArgumentException(vocabulary.size() + " terms for " + storage.size() + " vectors");
+        }
+        this.dimensionality = storage.dimensionality();
+        this.vocabulary = vocabulary;
+        vectors = storage;
+        frequency = new int[Math.max(16, vocabulary.size())];
+        Arrays.fill(frequency, -1);
     }
 
     public int dimensionality() {
@@ -46,33 +114,183 @@ public class Embeddings implements Iterable<String>, Serializable {
      * @return the counts of that phrase
      */
     public int getFrequency(String phrase) {
-        Integer wordInt = dictionary.get(phrase);
-        if(wordInt == null) return 0;
-        return frequency.get(dictionary.get(phrase));
+        int wordInt = vocabulary.getIndex(phrase);
+        if(wordInt < 0) return 0;
+        return frequency[wordInt];
+    }
+
+    /**
+     * Get the frequency of the term at this index (-1 if none has been set)
+     */
+    public int getFrequency(int index) {
+        if(index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+        return frequency[index];
     }
 
     public int getRank(String phrase) {
-        return dictionary.get(phrase) + 1;
+        return vocabulary.getIndex(phrase) + 1;
     }
 
     public void setWordFrequency(String phrase, int freq) {
-        if(!dictionary.containsKey(phrase)) return;
-        frequency.set(dictionary.get(phrase), freq);
+        int wordInt = vocabulary.getIndex(phrase);
+        if(wordInt < 0) return;
+        frequency[wordInt] = freq;
     }
 
+    public void setFrequency(int index, int freq) {
+        if(index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+        frequency[index] = freq;
+    }
+
+    /**
+     * Add a term and its vector, unless the term is already present
+     * @throws UnsupportedOperationException if the current storage can't add rows (memory-mapped, quantized or lazy)
+     */
     public void addWordAndEmbedding(String phrase, WordEmbedding embedding) {
-        if(dictionary.containsKey(phrase)) {
+        if(embedding.size() != dimensionality) {
+            throw new IllegalArgumentException("Embedding for " + phrase + " has " + embedding.size()
+                    + " dimensions; expected " + dimensionality);
+        }
+        // checked before the term goes into the vocabulary, so a failure can't leave a term without a row
+        if(!vectors.supportsAdd()) {
+            throw new UnsupportedOperationException(vectors.getClass().getSimpleName()
+                    + " does not support adding vectors");
+        }
+        if(vocabulary.add(phrase) < 0) {
             return;
         }
-        dictionary.put(phrase, dictionary.size());
-        terms.add(phrase);
-        vectors.add(embedding);
-        frequency.add(-1);
+        dropIndex();
+        vectors.add(embedding.array(), embedding.offset());
+        if(size() > frequency.length) {
+            frequency = Arrays.copyOf(frequency, frequency.length * 2);
+        }
+        frequency[size() - 1] = -1;
     }
 
+    /**
+     * Get the embedding for this phrase.
+     * With the default heap storage this is a view: changes to it change the vector held here.
+     * @param phrase the phrase to look up
+     * @return its embedding, or null if it isn't in the dictionary
+     */
     public WordEmbedding get(String phrase) {
-        if(!dictionary.containsKey(phrase)) return null;
-        return vectors.get(dictionary.get(phrase));
+        int index = vocabulary.getIndex(phrase);
+        if(index < 0) return null;
+        return vectors.getEmbedding(index);
+    }
+
+    /**
+     * Get the vector for this phrase as a FloatBuffer, without copying it where the storage allows
+     * @param phrase the phrase to look up
+     * @return a buffer over its vector, or null if it isn't in the dictionary
+     */
+    public FloatBuffer getBuffer(String phrase) {
+        int index = vocabulary.getIndex(phrase);
+        if(index < 0) return null;
+        return vectors.getBuffer(index);
+    }
+
+    /**
+     * @return the storage backing all vectors
+     */
+    public VectorStorage getStorage() {
+        return vectors;
+    }
+
+    /**
+     * Replace the stored vectors with product-quantized codes, training codebooks on (a sample of) the current vectors.
+     * Similarity searches then use approximate scores. The previous storage is closed, as by setStorage, so it can't
+     * be used to rerank; to rerank against it, use productQuantize(subspaces, rerankFactor), or call setRerank on the
+     * returned storage with exact vectors held elsewhere (such as a memory-mapped snapshot).
+     * @param subspaces bytes per vector; must divide up the dimensions into pieces of at least one dimension
+     * @return the new storage
+     */
+    public PqVectorStorage productQuantize(int subspaces) {
+        return productQuantize(subspaces, 0);
+    }
+
+    /**
+     * Replace the stored vectors with product-quantized codes, optionally keeping the current storage to rescore the
+     * top candidates of every search exactly. Kept storage stays open until the quantized storage is itself replaced
+     * or these embeddings are closed.
+     * @param subspaces bytes per vector; must divide up the dimensions into pieces of at least one dimension
+     * @param rerankFactor how many candidates to rerank per result wanted, or 0 to close the current storage
+     * @return the new storage
+     */
+    public PqVectorStorage productQuantize(int subspaces, int rerankFactor) {
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, subspaces, PQ_TRAINING_SAMPLE, PQ_ITERATIONS, 0);
+        PqVectorStorage quantized = PqVectorStorage.encode(vectors, quantizer);
+        if (rerankFactor > 0) {
+            quantized.setRerank(vectors, rerankFactor);
+            replaceStorage(quantized, vectors);
+        } else {
+            replaceStorage(quantized, null);
+        }
+        return quantized;
+    }
+
+    /**
+     * Swap in different storage for the same vectors, such as a compressed or off-heap copy of the current storage.
+     * The storage being replaced is closed (which does nothing for heap storage), so it shouldn't be used elsewhere.
+     * @param storage storage holding a vector for every term, in the same order
+     */
+    public void setStorage(VectorStorage storage) {
+        if (storage.size() != vectors.size() || storage.dimensionality() != dimensionality) {
+            throw new IllegalArgumentException("Storage of " + storage.size() + "x" + storage.dimensionality()
+                    + " doesn't match embeddings of " + size() + "x" + dimensionality);
+        }
+        replaceStorage(storage, null);
+    }
+
+    /**
+     * Switch to new storage and close the old storage (and any exact vectors kept for it), except what is still used
+     * @param exact exact vectors the new storage reranks against, to keep open along with it, or null
+     */
+    private void replaceStorage(VectorStorage storage, @Nullable VectorStorage exact) {
+        VectorStorage old = vectors;
+        VectorStorage oldExact = exactVectors;
+        vectors = storage;
+        exactVectors = exact;
+        dropIndex();
+        closeUnlessKept(old);
+        if (oldExact != old) {
+            closeUnlessKept(oldExact);
+        }
+    }
+
+    private void closeUnlessKept(@Nullable VectorStorage storage) {
+        if (storage == null || storage == vectors || storage == exactVectors) return;
+        try {
+            storage.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't close replaced vector storage", e);
+        }
+    }
+
+    /**
+     * Move the vectors off the Java heap into native memory, leaving only the vocabulary on the heap.
+     * Embeddings are then returned as copies; call close() to let the native memory be reclaimed when done.
+     * @return the new storage
+     */
+    public OffHeapVectorStorage moveOffHeap() {
+        OffHeapVectorStorage offHeap = OffHeapVectorStorage.copyOf(vectors);
+        setStorage(offHeap);
+        return offHeap;
+    }
+
+    /**
+     * Release what the vector storage holds outside the heap (open files, native memory). The vectors can't be used
+     * afterward; for heap storage this does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            vectors.close();
+        } finally {
+            if (exactVectors != null) {
+                exactVectors.close();
+            }
+        }
     }
 
     /**
@@ -80,28 +298,45 @@ public class Embeddings implements Iterable<String>, Serializable {
      * @param toKeep
      */
     public void filterOn(Set<String> toKeep) {
-        for(int i=0; i<size(); i++) {
-            if(!toKeep.contains(terms.get(i))) {
-                terms.set(i, null);
-                vectors.set(i, null);
-                dictionary.remove(terms.get(i));
-            }
-        }
-        List<String> newTerms = new ArrayList<>();
-        List<WordEmbedding> newVectors = new ArrayList<>();
-        Map<String, Integer> newDictionary = new HashMap<>();
+        int[] newFrequency = new int[Math.max(16, size())];
+        int[] keptRows = new int[size()];
         int j=0;
-        for(int i=0; i<terms.size(); i++) {
-            if(terms.get(i) != null) {
-                newDictionary.put(terms.get(i), j);
-                newTerms.add(terms.get(i));
-                newVectors.add(vectors.get(i));
+        int i=0;
+        for(String term : vocabulary) {
+            if(toKeep.contains(term)) {
+                newFrequency[j] = frequency[i];
+                keptRows[j] = i;
                 j++;
             }
+            i++;
+        }
+        vocabulary = vocabulary.select(keptRows, j);
+        frequency = newFrequency;
+        replaceStorage(vectors.select(Arrays.copyOf(keptRows, j)), null);
+    }
+
+    /**
+     * Route similarity queries (topK, getTopNSimilar, mostSimilarTo) through an index instead of scanning every row.
+     * The index must have been built over this object's current rows; adding or filtering terms drops it.
+     * @param index the index to use, or null to go back to exact scans
+     */
+    public void setNearestNeighborIndex(@Nullable NearestNeighborIndex index) {
+        if (index != null && index.size() != vectors.size()) {
+            throw new IllegalArgumentException("Index covers " + index.size() + " rows; embeddings have " + size());
+        }
+        this.index = index;
+    }
+
+    @Nullable
+    public NearestNeighborIndex getNearestNeighborIndex() {
+        return index;
+    }
+
+    private void dropIndex() {
+        if (index != null) {
+            LOGGER.warning("Embeddings changed; dropping nearest neighbor index");
+            index = null;
         }
-        terms = newTerms;
-        dictionary = newDictionary;
-        vectors = newVectors;
     }
 
     /**
@@ -116,67 +351,246 @@ public class Embeddings implements Iterable<String>, Serializable {
         WordEmbedding we = get(phrase);
         return getTopNSimilar(we, n);
     }
-    // todo: call threaded!
+
     public Map<String, Double> getTopNSimilar(WordEmbedding we, int n) {
-//        int phraseIndex = dictionary.get(phrase);
-        List<String> mostSimilarStrings = new ArrayList<>();
-        List<Double> mostSimilarScores = new ArrayList<>();
+        return getTopNSimilar(we, n, Collections.<String>emptySet());
+    }
+
+    /**
+     * Get the n most similar phrases to an embedding, leaving out some phrases (such as the query words)
+     * @param we the query embedding
+     * @param n how many phrases to return
+     * @param exclude phrases that should not be returned
+     * @return phrases and their dot products with the query, most similar first
+     */
+    public Map<String, Double> getTopNSimilar(WordEmbedding we, int n, Collection<String> exclude) {
+        TopKHeap top = topK(we, n, exclude);
         Map<String, Double> mostSimilar = new LinkedHashMap<>();
-        double[] scores = new double[vectors.size()];
-        for (int j = 0; j < scores.length; j++) {
-            scores[j] = we.dot(vectors.get(j));
-        }
-//        scores[phraseIndex] = 0;
-        mostSimilarStrings.add(terms.get(0));
-        mostSimilarScores.add(scores[0]);
-        for (int i = 0; i < scores.length; i++) {
-            for (int j = 0; j < n; j++) {
-                if (j >= mostSimilarStrings.size()) {
-                    mostSimilarScores.add(scores[i]);
-                    mostSimilarStrings.add(terms.get(i));
-                    break;
-                }
-                if (scores[i] > mostSimilarScores.get(j)) {
-                    mostSimilarScores.add(j, scores[i]);
-                    mostSimilarStrings.add(j, terms.get(i));
-                    break;
-                }
+        for (int i = 0; i < top.size(); i++) {
+            mostSimilar.put(vocabulary.getTerm(top.getIndex(i)), top.getScore(i));
+        }
+        return mostSimilar;
+    }
+
+    /**
+     * Find the k rows with the highest dot product with an embedding, without boxing any scores.
+     * Use getTerm to look up the terms of the returned indices.
+     * @param we the query embedding
+     * @param k how many rows to return
+     * @param exclude phrases that should not be returned
+     * @return a sorted heap of row indices and scores, best first
+     */
+    public TopKHeap topK(WordEmbedding we, int k, Collection<String> exclude) {
+        return topK(we.array(), we.offset(), k, rowsOf(exclude));
+    }
+
+    private int[] rowsOf(Collection<String> phrases) {
+        int[] rows = new int[phrases.size()];
+        int nRows = 0;
+        for (String phrase : phrases) {
+            int index = vocabulary.getIndex(phrase);
+            if (index >= 0) rows[nRows++] = index;
+        }
+        return Arrays.copyOf(rows, nRows);
+    }
+
+    /**
+     * Find the k rows with the highest dot product with a query vector
+     * @param query array holding the query vector
+     * @param queryOffset where in the array the query vector starts
+     * @param k how many rows to return
+     * @param excludeRows rows that should not be returned
+     * @return a sorted heap of row indices and scores, best first
+     */
+    public TopKHeap topK(float[] query, int queryOffset, int k, int... excludeRows) {
+        // keep a few extra candidates rather than checking every row against the exclusions
+        int wanted = k + excludeRows.length;
+        if (index != null) {
+            return dropExcluded(index.search(query, queryOffset, wanted), k, excludeRows);
+        }
+        TopKHeap candidates = new TopKHeap(Math.min(vectors.candidates(wanted), vectors.size()));
+        scan(query, queryOffset, 0, vectors.size(), candidates);
+        return dropExcluded(vectors.rerank(candidates, query, queryOffset, wanted), k, excludeRows);
+    }
+
+    private static TopKHeap dropExcluded(TopKHeap candidates, int k, int[] excludeRows) {
+        candidates.sort();
+        if (excludeRows.length == 0 && candidates.size() <= k) return candidates;
+        TopKHeap top = new TopKHeap(Math.min(k, candidates.size()));
+        for (int i = 0; i < candidates.size(); i++) {
+            int index = candidates.getIndex(i);
+            boolean excluded = false;
+            for (int row : excludeRows) {
+                excluded |= row == index;
             }
+            if (!excluded) top.offer(index, candidates.getScore(i));
         }
-        for (int i = 0; i < n; i++) {
-            mostSimilar.put(mostSimilarStrings.get(i), mostSimilarScores.get(i));
+        return top.sort();
+    }
+
+    /**
+     * Get the n most similar phrases for each of a batch of query embeddings.
+     * Much faster than separate getTopNSimilar calls: rows are scored against blocks of queries at a time, so each
+     * row is read from memory once per batch rather than once per query.
+     * @param queries the query embeddings
+     * @param n how many phrases to return per query
+     * @return for each query, phrases and their dot products with it, most similar first
+     */
+    public List<Map<String, Double>> getTopNSimilar(List<WordEmbedding> queries, int n) {
+        return getTopNSimilar(queries, n, null);
+    }
+
+    /**
+     * Get the n most similar phrases for each of a batch of query embeddings, leaving out some phrases for each
+     * @param queries the query embeddings
+     * @param n how many phrases to return per query
+     * @param exclude for each query, the phrases that should not be returned (or null to exclude nothing)
+     * @return for each query, phrases and their dot products with it, most similar first
+     */
+    public List<Map<String, Double>> getTopNSimilar(List<WordEmbedding> queries, int n,
+                                                    @Nullable List<? extends Collection<String>> exclude) {
+        float[] packed = new float[queries.size() * dimensionality];
+        int[][] excludeRows = new int[queries.size()][];
+        for (int q = 0; q < queries.size(); q++) {
+            WordEmbedding query = queries.get(q);
+            System.arraycopy(query.array(), query.offset(), packed, q * dimensionality, dimensionality);
+            excludeRows[q] = exclude == null ? new int[0] : rowsOf(exclude.get(q));
         }
-        return mostSimilar;
+        TopKHeap[] tops = topK(packed, queries.size(), n, excludeRows);
+        List<Map<String, Double>> results = new ArrayList<>(tops.length);
+        for (TopKHeap top : tops) {
+            Map<String, Double> mostSimilar = new LinkedHashMap<>();
+            for (int i = 0; i < top.size(); i++) {
+                mostSimilar.put(vocabulary.getTerm(top.getIndex(i)), top.getScore(i));
+            }
+            results.add(mostSimilar);
+        }
+        return results;
     }
 
-    // todo: call threaded!
-    public String mostSimilarTo(WordEmbedding embedding) {
-        double best = -Double.MAX_VALUE;
-        String bestString = "";
-        for(int j=0; j<vectors.size(); j++) {
-            double score = embedding.dot(vectors.get(j));
-            if(score > best) {
-                bestString = terms.get(j);
-                best = score;
+    /**
+     * Find the k highest-scoring rows for each of a batch of query vectors
+     * @param queries query vectors packed back to back, dimensionality() floats each
+     * @param nQueries how many query vectors are packed in the array
+     * @param k how many rows to return per query
+     * @param excludeRows for each query, rows that should not be returned
+     * @return a sorted heap of row indices and scores for each query, best first
+     */
+    public TopKHeap[] topK(float[] queries, int nQueries, int k, int[][] excludeRows) {
+        if (index != null || vectors.scansIndividually()) {
+            TopKHeap[] tops = new TopKHeap[nQueries];
+            for (int q = 0; q < nQueries; q++) {
+                tops[q] = topK(queries, q * dimensionality, k, excludeRows[q]);
             }
+            return tops;
+        }
+        int[] capacities = new int[nQueries];
+        for (int q = 0; q < nQueries; q++) {
+            capacities[q] = Math.min(k + excludeRows[q].length, vectors.size());
         }
-        return bestString;
+        TopKHeap[] candidates = new BatchScanTask(queries, nQueries, 0, vectors.size(), capacities).invokeIn(getPool());
+        TopKHeap[] tops = new TopKHeap[nQueries];
+        for (int q = 0; q < nQueries; q++) {
+            tops[q] = dropExcluded(candidates[q], k, excludeRows[q]);
+        }
+        return tops;
+    }
+
+    private void scan(float[] query, int queryOffset, int begin, int end, TopKHeap heap) {
+        if (end - begin <= SCAN_GRAIN) {
+            vectors.scan(query, queryOffset, begin, end, heap);
+        } else {
+            heap.merge(getPool().invoke(new ScanTask(query, queryOffset, begin, end, heap.capacity())));
+        }
+    }
+
+    /**
+     * Set the pool used for parallel similarity scans (by default, the shared pool from Threading)
+     * @param pool a fork-join pool, or null to go back to the shared pool
+     */
+    public void setPool(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private ForkJoinPool getPool() {
+        return pool == null ? Threading.getPool() : pool;
+    }
+
+    /**
+     * Scores a range of rows into its own top-K heap, splitting the range across workers and merging the heaps
+     */
+    private class ScanTask extends RecursiveTask<TopKHeap> {
+        private final float[] query;
+        private final int queryOffset;
+        private final int begin;
+        private final int end;
+        private final int k;
+
+        ScanTask(float[] query, int queryOffset, int begin, int end, int k) {
+            this.query = query;
+            this.queryOffset = queryOffset;
+            this.begin = begin;
+            this.end = end;
+            this.k = k;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (end - begin <= SCAN_GRAIN) {
+                TopKHeap heap = new TopKHeap(k);
+                vectors.scan(query, queryOffset, begin, end, heap);
+                return heap;
+            }
+            int middle = (begin + end) >>> 1;
+            ScanTask left = new ScanTask(query, queryOffset, begin, middle, k);
+            left.fork();
+            TopKHeap heap = new ScanTask(query, queryOffset, middle, end, k).compute();
+            heap.merge(left.join());
+            return heap;
+        }
+    }
+
+    public String mostSimilarTo(WordEmbedding embedding) {
+        TopKHeap top = topK(embedding.array(), embedding.offset(), 1);
+        return top.size() == 0 ? "" : vocabulary.getTerm(top.getIndex(0));
+    }
+
+    /**
+     * Get the term at a given index (the rank of a term minus one)
+     */
+    public String getTerm(int index) {
+        return vocabulary.getTerm(index);
+    }
+
+    /**
+     * Get the index of a term, or -1 if it isn't in the dictionary
+     */
+    public int getIndex(String phrase) {
+        return vocabulary.getIndex(phrase);
+    }
+
+    /**
+     * @return the map between terms and indices
+     */
+    public Vocabulary getVocabulary() {
+        return vocabulary;
     }
 
     public WordEmbedding getSumVector(Collection<String> sums, @Nullable Collection<String> differences) {
         WordEmbedding ans = new WordEmbedding(dimensionality);
         for(String addword : sums) {
-            if(dictionary.containsKey(addword)) {
-                int wordInt = dictionary.get(addword);
-                ans.add(vectors.get(dictionary.get(addword)));
+            int index = vocabulary.getIndex(addword);
+            if(index >= 0) {
+                ans.add(vectors.getEmbedding(index));
             }
             else
                 System.out.println("WARNING: word " + addword + " not in dictionary; ignoring");
         }
         if(differences != null) {
             for (String subword : differences) {
-                if(dictionary.containsKey(subword)) {
-                    ans.subtract(vectors.get(dictionary.get(subword)));
+                int index = vocabulary.getIndex(subword);
+                if(index >= 0) {
+                    ans.subtract(vectors.getEmbedding(index));
                 }
                 else
                     System.out.println("WARNING: word " + subword + " not in dictionary; ignoring");
@@ -185,13 +599,21 @@ public class Embeddings implements Iterable<String>, Serializable {
         return ans;
     }
 
+    /**
+     * Scale every vector to unit length. This changes every similarity score, so any nearest neighbor index is
+     * dropped; build it after normalizing.
+     */
     public void normalizeAll() {
-        for(WordEmbedding embedding : vectors)
-            embedding.normalize();
+        vectors.normalizeRows();
+        dropIndex();
+        // reranking compares against the exact vectors, which have to be normalized the same way
+        if (exactVectors != null) {
+            exactVectors.normalizeRows();
+        }
     }
 
     public boolean contains(String phrase) {
-        return dictionary.containsKey(phrase);
+        return vocabulary.contains(phrase);
     }
 
     /**
@@ -207,12 +629,69 @@ public class Embeddings implements Iterable<String>, Serializable {
     }
 
     public int size() {
-        return terms.size();
+        return vocabulary.size();
     }
 
     @Override
     public Iterator<String> iterator() {
-        return terms.iterator();
+        return vocabulary.iterator();
+    }
+
+    /**
+     * Scores a range of rows against a batch of queries, one block of rows and one block of queries at a time,
+     * keeping a top-K heap per query. Ranges are split across workers and their heaps merged.
+     */
+    private class BatchScanTask extends RecursiveTask<TopKHeap[]> {
+        private final float[] queries;
+        private final int nQueries;
+        private final int begin;
+        private final int end;
+        private final int[] capacities;
+
+        BatchScanTask(float[] queries, int nQueries, int begin, int end, int[] capacities) {
+            this.queries = queries;
+            this.nQueries = nQueries;
+            this.begin = begin;
+            this.end = end;
+            this.capacities = capacities;
+        }
+
+        TopKHeap[] invokeIn(ForkJoinPool pool) {
+            return end - begin <= SCAN_GRAIN ? compute() : pool.invoke(this);
+        }
+
+        @Override
+        protected TopKHeap[] compute() {
+            if (end - begin > SCAN_GRAIN) {
+                int middle = (begin + end) >>> 1;
+                BatchScanTask left = new BatchScanTask(queries, nQueries, begin, middle, capacities);
+                left.fork();
+                TopKHeap[] heaps = new BatchScanTask(queries, nQueries, middle, end, capacities).compute();
+                TopKHeap[] leftHeaps = left.join();
+                for (int q = 0; q < nQueries; q++) {
+                    heaps[q].merge(leftHeaps[q]);
+                }
+                return heaps;
+            }
+            TopKHeap[] heaps = new TopKHeap[nQueries];
+            for (int q = 0; q < nQueries; q++) {
+                heaps[q] = new TopKHeap(capacities[q]);
+            }
+            double[] scores = new double[BATCH_QUERY_BLOCK];
+            for (int rowBlock = begin; rowBlock < end; rowBlock += BATCH_ROW_BLOCK) {
+                int rowBlockEnd = Math.min(end, rowBlock + BATCH_ROW_BLOCK);
+                for (int queryBlock = 0; queryBlock < nQueries; queryBlock += BATCH_QUERY_BLOCK) {
+                    int blockSize = Math.min(BATCH_QUERY_BLOCK, nQueries - queryBlock);
+                    for (int row = rowBlock; row < rowBlockEnd; row++) {
+                        vectors.dots(row, queries, queryBlock * dimensionality, blockSize, scores);
+                        for (int q = 0; q < blockSize; q++) {
+                            heaps[queryBlock + q].offer(row, scores[q]);
+                        }
+                    }
+                }
+            }
+            return heaps;
+        }
     }
 
     /**
@@ -221,33 +700,53 @@ public class Embeddings implements Iterable<String>, Serializable {
      * @return a double array containing each embedding's dot product with every embedding
      */
     public double[] calculateScoresThreaded(WordEmbedding thisEmb) {
-        int n = vectors.size();
-        double[] scores = new double[n];
-        Threading.chunkAndThread(n, DotThread.class, scores, thisEmb, vectors);
+        double[] scores = new double[vectors.size()];
+        getPool().invoke(new ScoreTask(thisEmb.array(), thisEmb.offset(), 0, scores.length, scores));
         return scores;
     }
 
-    public static class DotThread extends Threading.IntRangeThread {
-        private double[] results;
-        private WordEmbedding emb;
-        private List<WordEmbedding> vectors;
+    private class ScoreTask extends RecursiveAction {
+        private final float[] query;
+        private final int queryOffset;
+        private final int begin;
+        private final int end;
+        private final double[] results;
 
-        @Override
-        public void initializeParams(Object[] args) {
-            this.results = (double[]) args[0];
-            this.emb = (WordEmbedding) args[1];
-            this.vectors = (List<WordEmbedding>) args[2];
+        ScoreTask(float[] query, int queryOffset, int begin, int end, double[] results) {
+            this.query = query;
+            this.queryOffset = queryOffset;
+            this.begin = begin;
+            this.end = end;
+            this.results = results;
         }
+
         @Override
-        public void run() {
-            for (int i = begin; i < end; i++) {
-                results[i] = vectors.get(i).dot(emb);
+        protected void compute() {
+            if (end - begin <= SCAN_GRAIN) {
+                for (int i = begin; i < end; i++) {
+                    results[i] = vectors.dot(i, query, queryOffset);
+                }
+                return;
             }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new ScoreTask(query, queryOffset, begin, middle, results),
+                    new ScoreTask(query, queryOffset, middle, end, results));
         }
     }
 
     public Iterator<WordEmbedding> embeddingIterator() {
-        return vectors.iterator();
+        return new Iterator<WordEmbedding>() {
+            private int next = 0;
+            @Override
+            public boolean hasNext() {
+                return next < vectors.size();
+            }
+            @Override
+            public WordEmbedding next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return vectors.getEmbedding(next++);
+            }
+        };
     }
 
     /**
@@ -255,28 +754,56 @@ public class Embeddings implements Iterable<String>, Serializable {
      * @return
      */
     public List<String> getLexicon() {
-        return new ArrayList<>(terms);
+        List<String> lexicon = new ArrayList<>(size());
+        for (String term : vocabulary) {
+            lexicon.add(term);
+        }
+        return lexicon;
     }
 
 
     /**
-     * Override the default read/write object
+     * Override the default read/write object.
+     * Terms are still written as a map and a list, and vectors as a list of WordEmbeddings, so that older serialized
+     * files remain readable.
      * @param stream
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
+        List<WordEmbedding> vectorList = new ArrayList<>(vectors.size());
+        for (int i = 0; i < vectors.size(); i++) {
+            vectorList.add(vectors.getEmbedding(i));
+        }
+        List<String> terms = getLexicon();
+        Map<String, Integer> dictionary = new HashMap<>(terms.size() * 4 / 3 + 1);
+        for (int i = 0; i < terms.size(); i++) {
+            dictionary.put(terms.get(i), i);
+        }
         stream.writeObject(dictionary);
         stream.writeObject(terms);
-        stream.writeObject(vectors);
-        stream.writeObject(frequency);
+        stream.writeObject(vectorList);
+        List<Integer> frequencyList = new ArrayList<>(terms.size());
+        for (int i = 0; i < terms.size(); i++) {
+            frequencyList.add(frequency[i]);
+        }
+        stream.writeObject(frequencyList);
         stream.writeObject(dimensionality);
     }
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        dictionary = (Map<String, Integer>) stream.readObject();
-        terms = (List<String>) stream.readObject();
-        vectors = (List<WordEmbedding>) stream.readObject();
-        frequency = (List<Integer>) stream.readObject();
+        // the map is rebuilt from the list
+        stream.readObject();
+        vocabulary = Vocabulary.of((List<String>) stream.readObject());
+        List<WordEmbedding> vectorList = (List<WordEmbedding>) stream.readObject();
+        List<Integer> frequencyList = (List<Integer>) stream.readObject();
+        frequency = new int[Math.max(16, frequencyList.size())];
+        for (int i = 0; i < frequencyList.size(); i++) {
+            frequency[i] = frequencyList.get(i);
+        }
         dimensionality = (int) stream.readObject();
+        vectors = new ArrayVectorStorage(dimensionality, vectorList.size());
+        for (WordEmbedding embedding : vectorList) {
+            vectors.add(embedding.array(), embedding.offset());
+        }
     }
 
 }
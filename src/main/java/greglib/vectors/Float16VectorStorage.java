@@ -0,0 +1,98 @@
+package greglib.vectors;
+
+/**
+ * Storage holding every component in half precision (see Float16), half the size of float storage.
+ * Half precision keeps about three significant digits, which is plenty for similarity search over embeddings.
+ */
+public class Float16VectorStorage extends VectorStorage {
+
+    private final int dimensionality;
+    private final int size;
+    private final short[] halves;
+
+    private Float16VectorStorage(int dimensionality, int size) {
+        this.dimensionality = dimensionality;
+        this.size = size;
+        long length = (long) size * dimensionality;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(size + " rows of " + dimensionality + " are too many for one array");
+        }
+        halves = new short[(int) length];
+    }
+
+    /**
+     * Convert every row of a storage to half precision
+     * @param source the vectors to convert
+     * @return storage holding the converted vectors
+     */
+    public static Float16VectorStorage encode(VectorStorage source) {
+        int dim = source.dimensionality();
+        Float16VectorStorage storage = new Float16VectorStorage(dim, source.size());
+        float[] vector = new float[dim];
+        for (int row = 0; row < source.size(); row++) {
+            source.copyRow(row, vector, 0);
+            storage.setRow(row, vector);
+        }
+        return storage;
+    }
+
+    private void setRow(int row, float[] vector) {
+        int base = row * dimensionality;
+        for (int d = 0; d < dimensionality; d++) {
+            halves[base + d] = Float16.fromFloat(vector[d]);
+        }
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public float get(int row, int col) {
+        return Float16.toFloat(halves[row * dimensionality + col]);
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        int base = row * dimensionality;
+        for (int d = 0; d < dimensionality; d++) {
+            dest[destOffset + d] = Float16.toFloat(halves[base + d]);
+        }
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        return VectorKernels.dot(halves, row * dimensionality, query, offset, dimensionality);
+    }
+
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality];
+        copyRow(row, vector, 0);
+        return new WordEmbedding(vector);
+    }
+
+    /**
+     * Rows are rescaled and rounded to half precision again
+     */
+    @Override
+    public synchronized void normalizeRows() {
+        float[] vector = new float[dimensionality];
+        for (int row = 0; row < size; row++) {
+            copyRow(row, vector, 0);
+            double norm = Math.sqrt(VectorKernels.squaredNorm(vector, 0, dimensionality));
+            if (norm > 0) {
+                for (int d = 0; d < dimensionality; d++) {
+                    vector[d] /= norm;
+                }
+                setRow(row, vector);
+            }
+        }
+    }
+}
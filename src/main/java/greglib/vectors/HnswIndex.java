@@ -0,0 +1,429 @@
+package greglib.vectors;
+
+import greglib.util.TopKHeap;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Approximate nearest neighbour index over the rows of an Embeddings object, as a hierarchical navigable small world
+ * graph (Malkov and Yashunin, 2016). Similarity is the dot product, so embeddings should be normalized first.
+ *
+ * Recall is traded against latency with three parameters:
+ *      m               links per node on the upper layers (twice this on the bottom layer); more links mean better
+ *                      recall, a bigger index and slower builds
+ *      efConstruction  candidates considered when linking a new node; higher builds a better graph, more slowly
+ *      efSearch        candidates considered per query (never fewer than k); can be changed after building
+ *
+ * The graph only holds row indices, so it is saved separately from the vectors (by convention next to the
+ * embeddings file, with an .hnsw extension) and loaded back against the same Embeddings.
+ * Searches may run concurrently; building is single-threaded.
+ */
+public class HnswIndex implements NearestNeighborIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(HnswIndex.class.getName());
+
+    private static final int MAGIC = 0x484e5357;
+    private static final int VERSION = 1;
+
+    private final VectorStorage vectors;
+    private final int size;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private int efSearch;
+
+    private final int[] levels;
+    // bottom layer: for each node, a count followed by up to maxM0 neighbors
+    private final int[] links0;
+    // upper layers: for each node, (count followed by up to m neighbors) for each level above 0
+    private final int[][] upperLinks;
+    private int entryPoint;
+    private int maxLevel;
+
+    private final ThreadLocal<Visited> visited;
+
+    /**
+     * Build an index over all rows of an Embeddings object
+     * @param embeddings the embeddings to index
+     * @param m links per node on the upper layers (16 is a good start)
+     * @param efConstruction candidates considered while building (200 is a good start)
+     * @param seed seed for choosing node levels
+     */
+    public HnswIndex(Embeddings embeddings, int m, int efConstruction, long seed) {
+        this(embeddings.getStorage(), m, efConstruction);
+        LOGGER.info("Building HNSW index over " + size + " vectors (m=" + m + ", efConstruction=" + efConstruction + ")");
+        Random random = new Random(seed);
+        double levelMultiplier = 1 / Math.log(Math.max(2, m));
+        float[] vector = new float[vectors.dimensionality()];
+        entryPoint = -1;
+        for (int node = 0; node < size; node++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            levels[node] = level;
+            upperLinks[node] = new int[level * (m + 1)];
+            vectors.copyRow(node, vector, 0);
+            insert(node, vector);
+            if ((node + 1) % 100000 == 0) {
+                LOGGER.info("Indexed " + (node + 1) + " vectors");
+            }
+        }
+    }
+
+    public HnswIndex(Embeddings embeddings) {
+        this(embeddings, 16, 200, 0);
+    }
+
+    private HnswIndex(VectorStorage vectors, int m, int efConstruction) {
+        if (m < 2) throw new IllegalArgumentException("m must be at least 2");
+        this.vectors = vectors;
+        this.size = vectors.size();
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = 50;
+        levels = new int[size];
+        links0 = new int[size * (maxM0 + 1)];
+        upperLinks = new int[size][];
+        visited = ThreadLocal.withInitial(() -> new Visited(size));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * Set how many candidates are considered per query: higher means better recall and slower queries
+     */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public TopKHeap search(float[] query, int queryOffset, int k) {
+        TopKHeap results = new TopKHeap(Math.min(k, size));
+        if (size == 0 || k == 0) return results.sort();
+        int current = greedyDescent(query, queryOffset, entryPoint, maxLevel, 0);
+        TopKHeap nearest = searchLayer(query, queryOffset, current, Math.max(efSearch, k), 0);
+        results.merge(nearest);
+        return results.sort();
+    }
+
+    private void insert(int node, float[] vector) {
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = levels[node];
+            return;
+        }
+        int level = levels[node];
+        int current = greedyDescent(vector, 0, entryPoint, maxLevel, level);
+        for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+            TopKHeap candidates = searchLayer(vector, 0, current, efConstruction, layer);
+            candidates.sort();
+            current = candidates.getIndex(0);
+            int maxLinks = layer == 0 ? maxM0 : m;
+            int[] selected = selectNeighbors(candidates.indices(), candidates.scores(), m);
+            setLinks(node, layer, selected, selected.length);
+            for (int neighbor : selected) {
+                addLink(neighbor, node, layer, maxLinks);
+            }
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Add a link from one node to another, pruning the node's links with the selection heuristic if it has too many
+     */
+    private void addLink(int from, int to, int layer, int maxLinks) {
+        int[] links = links(from, layer);
+        int start = linksStart(from, layer);
+        int count = links[start];
+        if (count < maxLinks) {
+            links[start + 1 + count] = to;
+            links[start] = count + 1;
+            return;
+        }
+        float[] vector = new float[vectors.dimensionality()];
+        vectors.copyRow(from, vector, 0);
+        int[] candidates = new int[count + 1];
+        double[] scores = new double[count + 1];
+        TopKHeap sorted = new TopKHeap(count + 1);
+        for (int i = 0; i < count; i++) {
+            int neighbor = links[start + 1 + i];
+            sorted.offer(neighbor, vectors.dot(neighbor, vector, 0));
+        }
+        sorted.offer(to, vectors.dot(to, vector, 0));
+        sorted.sort();
+        for (int i = 0; i < sorted.size(); i++) {
+            candidates[i] = sorted.getIndex(i);
+            scores[i] = sorted.getScore(i);
+        }
+        int[] selected = selectNeighbors(candidates, scores, maxLinks);
+        setLinks(from, layer, selected, selected.length);
+    }
+
+    /**
+     * The neighbor selection heuristic: take candidates best first, skipping any that is more similar to an
+     * already selected neighbor than to the base node, so links spread out in different directions.
+     * Skipped candidates fill any remaining slots.
+     * @param candidates candidate nodes, most similar to the base node first
+     * @param scores their similarity to the base node
+     * @param max the most neighbors to select
+     */
+    private int[] selectNeighbors(int[] candidates, double[] scores, int max) {
+        if (candidates.length <= max) return candidates;
+        int[] selected = new int[max];
+        int nSelected = 0;
+        boolean[] taken = new boolean[candidates.length];
+        float[] vector = new float[vectors.dimensionality()];
+        for (int i = 0; i < candidates.length && nSelected < max; i++) {
+            vectors.copyRow(candidates[i], vector, 0);
+            boolean keep = true;
+            for (int j = 0; j < nSelected && keep; j++) {
+                keep = vectors.dot(selected[j], vector, 0) < scores[i];
+            }
+            if (keep) {
+                selected[nSelected++] = candidates[i];
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && nSelected < max; i++) {
+            if (!taken[i]) selected[nSelected++] = candidates[i];
+        }
+        return selected;
+    }
+
+    /**
+     * Walk greedily towards the query on each layer from top down to (but not including) bottom
+     */
+    private int greedyDescent(float[] query, int queryOffset, int start, int top, int bottom) {
+        int current = start;
+        double currentScore = vectors.dot(current, query, queryOffset);
+        for (int layer = top; layer > bottom; layer--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] links = links(current, layer);
+                int linksStart = linksStart(current, layer);
+                for (int i = 0; i < links[linksStart]; i++) {
+                    int neighbor = links[linksStart + 1 + i];
+                    double score = vectors.dot(neighbor, query, queryOffset);
+                    if (score > currentScore) {
+                        currentScore = score;
+                        current = neighbor;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one layer, keeping the ef most similar nodes found
+     */
+    private TopKHeap searchLayer(float[] query, int queryOffset, int start, int ef, int layer) {
+        Visited seen = visited.get();
+        seen.clear();
+        TopKHeap nearest = new TopKHeap(ef);
+        CandidateQueue candidates = new CandidateQueue(ef);
+        double startScore = vectors.dot(start, query, queryOffset);
+        seen.visit(start);
+        nearest.offer(start, startScore);
+        candidates.push(start, startScore);
+        while (candidates.size() > 0) {
+            if (candidates.topScore() < nearest.threshold()) break;
+            int current = candidates.pop();
+            int[] links = links(current, layer);
+            int linksStart = linksStart(current, layer);
+            for (int i = 0; i < links[linksStart]; i++) {
+                int neighbor = links[linksStart + 1 + i];
+                if (!seen.visit(neighbor)) continue;
+                double score = vectors.dot(neighbor, query, queryOffset);
+                if (nearest.offer(neighbor, score)) {
+                    candidates.push(neighbor, score);
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private int[] links(int node, int layer) {
+        return layer == 0 ? links0 : upperLinks[node];
+    }
+
+    private int linksStart(int node, int layer) {
+        return layer == 0 ? node * (maxM0 + 1) : (layer - 1) * (m + 1);
+    }
+
+    private void setLinks(int node, int layer, int[] neighbors, int count) {
+        int[] links = links(node, layer);
+        int start = linksStart(node, layer);
+        links[start] = count;
+        System.arraycopy(neighbors, 0, links, start + 1, count);
+    }
+
+    /**
+     * Save the graph (not the vectors) to a file
+     * @param filename the file to write
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(vectors.dimensionality());
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int node = 0; node < size; node++) {
+                out.writeInt(levels[node]);
+            }
+            for (int link : links0) {
+                out.writeInt(link);
+            }
+            for (int node = 0; node < size; node++) {
+                for (int link : upperLinks[node]) {
+                    out.writeInt(link);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a graph saved by save() for use with the embeddings it was built from
+     * @param filename the file to read
+     * @param embeddings the same embeddings the index was built over
+     * @return the index
+     * @throws IOException if the file is not an index or doesn't match the embeddings
+     */
+    public static HnswIndex load(String filename, Embeddings embeddings) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException(filename + " is not an HNSW index");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported HNSW index version " + version);
+            int size = in.readInt();
+            int dimensionality = in.readInt();
+            if (size != embeddings.size() || dimensionality != embeddings.dimensionality()) {
+                throw new IOException("Index of " + size + "x" + dimensionality + " doesn't match embeddings of "
+                        + embeddings.size() + "x" + embeddings.dimensionality());
+            }
+            HnswIndex index = new HnswIndex(embeddings.getStorage(), in.readInt(), in.readInt());
+            index.efSearch = in.readInt();
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            for (int node = 0; node < size; node++) {
+                index.levels[node] = in.readInt();
+            }
+            for (int i = 0; i < index.links0.length; i++) {
+                index.links0[i] = in.readInt();
+            }
+            for (int node = 0; node < size; node++) {
+                int[] links = new int[index.levels[node] * (index.m + 1)];
+                for (int i = 0; i < links.length; i++) {
+                    links[i] = in.readInt();
+                }
+                index.upperLinks[node] = links;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Marks visited nodes with a generation number, so clearing between searches is O(1)
+     */
+    private static class Visited {
+        private final int[] marks;
+        private int generation;
+
+        Visited(int size) {
+            marks = new int[size];
+        }
+
+        void clear() {
+            if (++generation == 0) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * @return true if the node had not been visited yet
+         */
+        boolean visit(int node) {
+            if (marks[node] == generation) return false;
+            marks[node] = generation;
+            return true;
+        }
+    }
+
+    /**
+     * Max-heap of candidates to expand, best first
+     */
+    private static class CandidateQueue {
+        private int[] nodes;
+        private double[] scores;
+        private int size;
+
+        CandidateQueue(int capacity) {
+            nodes = new int[Math.max(1, capacity)];
+            scores = new double[nodes.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        double topScore() {
+            return scores[0];
+        }
+
+        void push(int node, double score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] >= score) break;
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int lastNode = nodes[--size];
+            double lastScore = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && scores[child + 1] > scores[child]) child++;
+                if (scores[child] <= lastScore) break;
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = lastNode;
+            scores[i] = lastScore;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package greglib.vectors;
+
+import greglib.util.TopKHeap;
+
+/**
+ * Storage holding every component as a signed byte, a quarter the size of float storage.
+ * Values are quantized symmetrically, either with one scale per vector (its largest absolute value maps to 127) or
+ * with one scale per dimension (each column's largest absolute value maps to 127). Component d of a row reads back
+ * as code * rowScale * dimensionScale[d].
+ */
+public class Int8VectorStorage extends VectorStorage {
+
+    private final int dimensionality;
+    private final int size;
+    private final byte[] codes;
+    private final float[] rowScales;
+    // null when quantizing per vector
+    private final float[] dimensionScales;
+
+    private Int8VectorStorage(int dimensionality, int size, boolean perDimension) {
+        this.dimensionality = dimensionality;
+        this.size = size;
+        long length = (long) size * dimensionality;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(size + " rows of " + dimensionality + " are too many for one array");
+        }
+        codes = new byte[(int) length];
+        rowScales = new float[size];
+        dimensionScales = perDimension ? new float[dimensionality] : null;
+    }
+
+    /**
+     * Quantize every row of a storage
+     * @param source the vectors to quantize
+     * @param perDimension true to scale each dimension separately, false to scale each vector separately
+     * @return storage holding the quantized vectors
+     */
+    public static Int8VectorStorage encode(VectorStorage source, boolean perDimension) {
+        int dim = source.dimensionality();
+        Int8VectorStorage storage = new Int8VectorStorage(dim, source.size(), perDimension);
+        float[] vector = new float[dim];
+        if (perDimension) {
+            for (int row = 0; row < source.size(); row++) {
+                source.copyRow(row, vector, 0);
+                for (int d = 0; d < dim; d++) {
+                    storage.dimensionScales[d] = Math.max(storage.dimensionScales[d], Math.abs(vector[d]));
+                }
+            }
+            for (int d = 0; d < dim; d++) {
+                storage.dimensionScales[d] = scaleFor(storage.dimensionScales[d]);
+            }
+        }
+        for (int row = 0; row < source.size(); row++) {
+            source.copyRow(row, vector, 0);
+            int base = row * dim;
+            if (perDimension) {
+                storage.rowScales[row] = 1;
+                for (int d = 0; d < dim; d++) {
+                    storage.codes[base + d] = quantize(vector[d] / storage.dimensionScales[d]);
+                }
+            } else {
+                float max = 0;
+                for (int d = 0; d < dim; d++) {
+                    max = Math.max(max, Math.abs(vector[d]));
+                }
+                float scale = scaleFor(max);
+                storage.rowScales[row] = scale;
+                for (int d = 0; d < dim; d++) {
+                    storage.codes[base + d] = quantize(vector[d] / scale);
+                }
+            }
+        }
+        return storage;
+    }
+
+    private static float scaleFor(float maxAbs) {
+        // all-zero vectors or columns get any nonzero scale; their codes are all zero anyway
+        return maxAbs == 0 ? 1 : maxAbs / 127;
+    }
+
+    private static byte quantize(float value) {
+        return (byte) Math.max(-127, Math.min(127, Math.round(value)));
+    }
+
+    public boolean isPerDimension() {
+        return dimensionScales != null;
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public float get(int row, int col) {
+        float value = codes[row * dimensionality + col] * rowScales[row];
+        return dimensionScales == null ? value : value * dimensionScales[col];
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        int base = row * dimensionality;
+        float scale = rowScales[row];
+        for (int d = 0; d < dimensionality; d++) {
+            float value = codes[base + d] * scale;
+            dest[destOffset + d] = dimensionScales == null ? value : value * dimensionScales[d];
+        }
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        int base = row * dimensionality;
+        double dot = dimensionScales == null
+                ? VectorKernels.dot(codes, base, query, offset, dimensionality)
+                : VectorKernels.dot(codes, base, dimensionScales, query, offset, dimensionality);
+        return dot * rowScales[row];
+    }
+
+    /**
+     * Folds the per-dimension scales into the query once, so every row is a plain byte-by-float dot product
+     */
+    @Override
+    public void scan(float[] query, int offset, int begin, int end, TopKHeap heap) {
+        float[] scaled = query;
+        int scaledOffset = offset;
+        if (dimensionScales != null) {
+            scaled = new float[dimensionality];
+            scaledOffset = 0;
+            for (int d = 0; d < dimensionality; d++) {
+                scaled[d] = query[offset + d] * dimensionScales[d];
+            }
+        }
+        for (int row = begin; row < end; row++) {
+            double dot = VectorKernels.dot(codes, row * dimensionality, scaled, scaledOffset, dimensionality);
+            heap.offer(row, dot * rowScales[row]);
+        }
+    }
+
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality];
+        copyRow(row, vector, 0);
+        return new WordEmbedding(vector);
+    }
+
+    /**
+     * Rescales rows through their scale factors; the codes themselves are untouched
+     */
+    @Override
+    public synchronized void normalizeRows() {
+        float[] vector = new float[dimensionality];
+        for (int row = 0; row < size; row++) {
+            copyRow(row, vector, 0);
+            double norm = Math.sqrt(VectorKernels.squaredNorm(vector, 0, dimensionality));
+            if (norm > 0) {
+                rowScales[row] /= norm;
+            }
+        }
+    }
+}
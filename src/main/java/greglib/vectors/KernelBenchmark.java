@@ -0,0 +1,89 @@
+package greglib.vectors;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Compares the VectorKernels loops against the plain loops WordEmbedding used to run, on random vectors.
+ * Usage: KernelBenchmark [dimensionality] [number of vectors] [rounds]
+ */
+public class KernelBenchmark {
+
+    private static final Logger LOGGER = Logger.getLogger(KernelBenchmark.class.getName());
+
+    public static void main(String[] args) {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Random random = new Random(0);
+        float[] matrix = new float[dim * n];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = (float) random.nextGaussian();
+        }
+        WordEmbedding[] vectors = new WordEmbedding[n];
+        for (int i = 0; i < n; i++) {
+            vectors[i] = WordEmbedding.view(matrix, i * dim, dim);
+        }
+        WordEmbedding query = vectors[0];
+
+        // the first rounds warm up the JIT; only the last round of each is reported
+        double sink = 0;
+        long[] times = new long[6];
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += plainDot(query, v);
+            times[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += query.dot(v);
+            times[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += plainDot(query, v) / plainMag(query) / plainMag(v);
+            times[2] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += query.cosSim(v);
+            times[3] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += plainEuclidDist(query, v);
+            times[4] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (WordEmbedding v : vectors) sink += query.euclidDist(v);
+            times[5] = System.nanoTime() - start;
+        }
+        String[] names = {"dot (plain)", "dot (kernel)", "cosine (plain)", "cosine (kernel)",
+                "euclidean (plain)", "euclidean (kernel)"};
+        for (int i = 0; i < names.length; i++) {
+            LOGGER.info(String.format("%-20s %8.2f ns/vector", names[i], times[i] / (double) n));
+        }
+        LOGGER.fine("checksum " + sink);
+    }
+
+    private static double plainDot(WordEmbedding a, WordEmbedding b) {
+        double sum = 0;
+        for (int i = 0; i < a.size(); i++) {
+            sum += (float) a.get(i) * b.get(i);
+        }
+        return sum;
+    }
+
+    private static double plainMag(WordEmbedding a) {
+        double sqsum = 0;
+        for (int i = 0; i < a.size(); i++) {
+            sqsum += a.get(i) * a.get(i);
+        }
+        return Math.sqrt(sqsum);
+    }
+
+    private static double plainEuclidDist(WordEmbedding a, WordEmbedding b) {
+        double diff = 0;
+        for (int i = 0; i < a.size(); i++) {
+            diff += Math.pow(a.get(i) - b.get(i), 2);
+        }
+        return Math.sqrt(diff);
+    }
+}
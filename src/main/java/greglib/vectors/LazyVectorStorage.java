@@ -0,0 +1,283 @@
+package greglib.vectors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-only storage that reads each vector from disk the first time it is used, keeping recently used vectors in a
+ * least-recently-used cache bounded by size in bytes. Heap use follows the working set rather than the size of the
+ * model. Hit, miss and eviction counts are kept so the cache can be sized.
+ *
+ * Rows handed out by getEmbedding are copies. Anything that scores every row (like a nearest-neighbor scan without an
+ * index) will read the whole file through the cache.
+ */
+public class LazyVectorStorage extends VectorStorage {
+
+    // rough heap cost of a cache entry beyond its floats: map entry, boxed key, array header
+    private static final int ENTRY_OVERHEAD = 80;
+
+    /**
+     * Reads a single row from wherever it lives
+     */
+    public interface RowReader extends Closeable {
+        void read(int row, float[] dest) throws IOException;
+    }
+
+    private final int dimensionality;
+    private final int size;
+    private final RowReader reader;
+    private final long capacityBytes;
+    private final long entryBytes;
+
+    // guarded by itself
+    private final LinkedHashMap<Integer, float[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long residentBytes;
+    private volatile boolean normalized;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param dimensionality the length of every vector
+     * @param size the number of rows
+     * @param reader reads rows on cache misses; closed along with this storage
+     * @param capacityBytes roughly how much heap the cached vectors may take up
+     */
+    public LazyVectorStorage(int dimensionality, int size, RowReader reader, long capacityBytes) {
+        this.dimensionality = dimensionality;
+        this.size = size;
+        this.reader = reader;
+        this.capacityBytes = capacityBytes;
+        entryBytes = 4L * dimensionality + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Reads little-endian float vectors at arbitrary positions in a file
+     * @param file the file holding the vectors
+     * @param dimensionality the length of every vector
+     * @param offsets the byte offset of each row's vector in the file
+     * @return a reader that keeps the file open until it is closed
+     */
+    public static RowReader floatReader(Path file, int dimensionality, long[] offsets) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(
+                () -> ByteBuffer.allocate(4 * dimensionality).order(ByteOrder.LITTLE_ENDIAN));
+        return new RowReader() {
+            @Override
+            public void read(int row, float[] dest) throws IOException {
+                ByteBuffer buffer = buffers.get();
+                readFully(channel, buffer, offsets[row]);
+                buffer.asFloatBuffer().get(dest, 0, dimensionality);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Fill a buffer from a position in a file, with positional reads that are safe to make from several threads
+     * @return the buffer, flipped for reading
+     */
+    public static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        ((Buffer) buffer).clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("File ends before byte " + (position + buffer.limit()));
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a row from the cache, reading it on a miss. The returned array must not be modified.
+     */
+    private float[] row(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        synchronized (cache) {
+            float[] vector = cache.get(row);
+            if (vector != null) {
+                hits.increment();
+                return vector;
+            }
+        }
+        misses.increment();
+        float[] vector = new float[dimensionality];
+        try {
+            reader.read(row, vector);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read row " + row, e);
+        }
+        synchronized (cache) {
+            // another thread may have read the same row in the meantime
+            float[] cached = cache.get(row);
+            if (cached != null) return cached;
+            if (normalized) {
+                normalize(vector);
+            }
+            cache.put(row, vector);
+            residentBytes += entryBytes;
+            Iterator<Map.Entry<Integer, float[]>> eldest = cache.entrySet().iterator();
+            while (residentBytes > capacityBytes && cache.size() > 1) {
+                eldest.next();
+                eldest.remove();
+                residentBytes -= entryBytes;
+                evictions.increment();
+            }
+        }
+        return vector;
+    }
+
+    private static void normalize(float[] vector) {
+        double mag = Math.sqrt(VectorKernels.squaredNorm(vector, 0, vector.length));
+        if (mag == 0) return;
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= mag;
+        }
+    }
+
+    @Override
+    public float get(int row, int col) {
+        return row(row)[col];
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        System.arraycopy(row(row), 0, dest, destOffset, dimensionality);
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        return VectorKernels.dot(row(row), 0, query, offset, dimensionality);
+    }
+
+    /**
+     * Returns a copy; changes to it are not reflected in the storage
+     */
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality];
+        copyRow(row, vector, 0);
+        return WordEmbedding.view(vector, 0, dimensionality);
+    }
+
+    /**
+     * Returns a read-only buffer over the cached row, without copying
+     */
+    @Override
+    public FloatBuffer getBuffer(int row) {
+        return FloatBuffer.wrap(row(row)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Normalizes the rows already cached, and every row read from now on
+     */
+    @Override
+    public void normalizeRows() {
+        synchronized (cache) {
+            if (normalized) return;
+            normalized = true;
+            cache.values().forEach(LazyVectorStorage::normalize);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the fraction of row lookups answered from the cache (0 if there have been none)
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /**
+     * @return the number of rows currently cached
+     */
+    public int getResidentRows() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the estimated heap taken up by cached rows
+     */
+    public long getResidentBytes() {
+        synchronized (cache) {
+            return residentBytes;
+        }
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Drop every cached row (statistics are kept)
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+            residentBytes = 0;
+        }
+    }
+
+    /**
+     * Close the reader and drop the cache; rows can't be read afterward
+     */
+    @Override
+    public void close() throws IOException {
+        clearCache();
+        reader.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%d rows, %d cached (%d of %d bytes), %d hits, %d misses, %d evictions]",
+                getClass().getSimpleName(), size, getResidentRows(), getResidentBytes(), capacityBytes, getHits(),
+                getMisses(), getEvictions());
+    }
+}
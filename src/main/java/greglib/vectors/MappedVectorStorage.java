@@ -0,0 +1,188 @@
+package greglib.vectors;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only storage for little-endian float vectors that live in a memory-mapped file.
+ * Nothing but the row offsets is kept on the heap; the operating system pages vectors in as they are touched.
+ *
+ * Files are mapped in regions of 1 GB (a single MappedByteBuffer can't exceed 2 GB) that overlap by one vector,
+ * so every vector lies entirely within the region its first byte falls in.
+ * normalizeRows() doesn't touch the file: each row's scale factor is computed the first time the row is read.
+ */
+public class MappedVectorStorage extends VectorStorage {
+
+    /**
+     * log2 of the size of the regions that mapRegions splits a file into
+     */
+    public static final int REGION_BITS = 30;
+    private static final long REGION_MASK = (1L << REGION_BITS) - 1;
+
+    private final ByteBuffer[] regions;
+    private final int dimensionality;
+    private final int size;
+    // either a byte offset per row, or a fixed stride from a base offset
+    private final long[] offsets;
+    private final long base;
+
+    private volatile boolean normalized;
+    private float[] scales;
+
+    /**
+     * Storage for vectors at arbitrary positions in the file
+     * @param regions the file as mapped by mapRegions
+     * @param dimensionality the length of every vector
+     * @param offsets the byte offset of each vector in the file
+     */
+    public MappedVectorStorage(ByteBuffer[] regions, int dimensionality, long[] offsets) {
+        this.regions = regions;
+        this.dimensionality = dimensionality;
+        this.offsets = offsets;
+        this.base = 0;
+        this.size = offsets.length;
+    }
+
+    /**
+     * Storage for vectors packed back to back starting at some position in the file
+     * @param regions the file as mapped by mapRegions
+     * @param dimensionality the length of every vector
+     * @param base the byte offset of the first vector
+     * @param size the number of vectors
+     */
+    public MappedVectorStorage(ByteBuffer[] regions, int dimensionality, long base, int size) {
+        this.regions = regions;
+        this.dimensionality = dimensionality;
+        this.offsets = null;
+        this.base = base;
+        this.size = size;
+    }
+
+    /**
+     * Map an entire file read-only, as little-endian regions usable by this class
+     * @param channel an open channel on the file; it may be closed once this returns
+     * @param overlap how many bytes past each region boundary to include (at least the byte length of a vector)
+     * @return the mapped regions
+     * @throws IOException
+     */
+    public static ByteBuffer[] mapRegions(FileChannel channel, int overlap) throws IOException {
+        long fileSize = channel.size();
+        int nRegions = (int) ((fileSize + REGION_MASK) >>> REGION_BITS);
+        ByteBuffer[] regions = new ByteBuffer[Math.max(1, nRegions)];
+        for (int i = 0; i < regions.length; i++) {
+            long start = (long) i << REGION_BITS;
+            long length = Math.min(fileSize - start, (1L << REGION_BITS) + overlap);
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+            regions[i] = region.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return regions;
+    }
+
+    /**
+     * Read a single byte at an absolute file position from mapped regions
+     */
+    public static byte byteAt(ByteBuffer[] regions, long position) {
+        return regions[(int) (position >>> REGION_BITS)].get((int) (position & REGION_MASK));
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private long position(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return offsets == null ? base + (long) row * dimensionality * 4 : offsets[row];
+    }
+
+    private ByteBuffer region(long position) {
+        return regions[(int) (position >>> REGION_BITS)];
+    }
+
+    private float scale(int row) {
+        if (!normalized) return 1;
+        float scale = scales[row];
+        // NaN marks a scale that hasn't been computed yet; racing threads compute the same value
+        if (scale != scale) {
+            long position = position(row);
+            double mag = Math.sqrt(VectorKernels.squaredNorm(region(position), (int) (position & REGION_MASK),
+                    dimensionality));
+            scale = mag == 0 ? 1 : (float) (1 / mag);
+            scales[row] = scale;
+        }
+        return scale;
+    }
+
+    @Override
+    public float get(int row, int col) {
+        long position = position(row);
+        return region(position).getFloat((int) (position & REGION_MASK) + 4 * col) * scale(row);
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        long position = position(row);
+        ByteBuffer region = region(position);
+        int start = (int) (position & REGION_MASK);
+        float scale = scale(row);
+        for (int i = 0; i < dimensionality; i++) {
+            dest[destOffset + i] = region.getFloat(start + 4 * i) * scale;
+        }
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        long position = position(row);
+        double sum = VectorKernels.dot(region(position), (int) (position & REGION_MASK), query, offset, dimensionality);
+        return sum * scale(row);
+    }
+
+    /**
+     * Returns a heap copy; changes to it are not reflected in the storage
+     */
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality];
+        copyRow(row, vector, 0);
+        return WordEmbedding.view(vector, 0, dimensionality);
+    }
+
+    /**
+     * Returns a read-only slice of the mapped file, without copying.
+     * If the storage has been normalized the file values are not unit length, so a normalized heap copy is returned.
+     */
+    @Override
+    public FloatBuffer getBuffer(int row) {
+        if (normalized && scale(row) != 1) {
+            float[] vector = new float[dimensionality];
+            copyRow(row, vector, 0);
+            return FloatBuffer.wrap(vector).asReadOnlyBuffer();
+        }
+        long position = position(row);
+        ByteBuffer slice = region(position).duplicate();
+        int start = (int) (position & REGION_MASK);
+        // through Buffer so the calls resolve the same on Java 8 and later runtimes
+        ((Buffer) slice).limit(start + dimensionality * 4);
+        ((Buffer) slice).position(start);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    @Override
+    public synchronized void normalizeRows() {
+        if (normalized) return;
+        scales = new float[size];
+        Arrays.fill(scales, Float.NaN);
+        normalized = true;
+    }
+}
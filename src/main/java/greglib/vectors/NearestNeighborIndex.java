@@ -0,0 +1,24 @@
+package greglib.vectors;
+
+import greglib.util.TopKHeap;
+
+/**
+ * An index that can answer similarity queries over the rows of an Embeddings object faster than a full scan,
+ * usually by returning approximate results. Set one on an Embeddings object with setNearestNeighborIndex.
+ */
+public interface NearestNeighborIndex {
+
+    /**
+     * Find (approximately) the k rows with the highest dot product with a query vector
+     * @param query array holding the query vector
+     * @param queryOffset where in the array the query vector starts
+     * @param k how many rows to return
+     * @return a sorted heap of row indices and scores, best first
+     */
+    TopKHeap search(float[] query, int queryOffset, int k);
+
+    /**
+     * @return the number of rows covered by the index
+     */
+    int size();
+}
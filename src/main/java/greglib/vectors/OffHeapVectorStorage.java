@@ -0,0 +1,207 @@
+package greglib.vectors;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage that packs all vectors row-major into large direct buffers, outside the Java heap, so a big vocabulary adds
+ * nothing to garbage collection work. Chunks are never reallocated, so buffers handed out by getBuffer stay attached
+ * as rows are added.
+ *
+ * close() lets go of the chunks, after which any access through the storage throws IllegalStateException. The native
+ * memory itself is freed by the garbage collector once nothing refers to it any more, like any direct buffer: it is
+ * never freed out from under a buffer from getBuffer or a scan still running on another thread.
+ */
+public class OffHeapVectorStorage extends VectorStorage {
+
+    // 256 MB per chunk unless the expected number of rows is smaller
+    private static final int CHUNK_BYTES = 1 << 28;
+
+    private final int dimensionality;
+    private final int rowsPerChunk;
+    private final int rowBytes;
+    // null once closed
+    private volatile ByteBuffer[] chunks;
+    private int nChunks;
+    private int size;
+
+    public OffHeapVectorStorage(int dimensionality) {
+        this(dimensionality, 0);
+    }
+
+    /**
+     * @param dimensionality the length of every vector
+     * @param expectedRows how many rows will be added, if known (0 if not); used to size chunks
+     */
+    public OffHeapVectorStorage(int dimensionality, int expectedRows) {
+        this.dimensionality = dimensionality;
+        rowBytes = 4 * Math.max(1, dimensionality);
+        int rows = Math.max(1, CHUNK_BYTES / rowBytes);
+        if (expectedRows > 0 && expectedRows < rows) {
+            rows = expectedRows;
+        }
+        rowsPerChunk = rows;
+        chunks = new ByteBuffer[4];
+        size = 0;
+    }
+
+    /**
+     * Copy every row of a storage off the heap
+     * @param source the vectors to copy
+     * @return off-heap storage holding the same vectors
+     */
+    public static OffHeapVectorStorage copyOf(VectorStorage source) {
+        OffHeapVectorStorage storage = new OffHeapVectorStorage(source.dimensionality(), source.size());
+        for (int row = 0; row < source.size(); row++) {
+            storage.getBuffer(storage.allocate()).put(source.getBuffer(row));
+        }
+        return storage;
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The buffer holding this row; the row starts at offset(row)
+     */
+    private ByteBuffer chunk(int row) {
+        ByteBuffer[] chunks = this.chunks;
+        if (chunks == null) throw new IllegalStateException("Storage has been closed");
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return chunks[row / rowsPerChunk];
+    }
+
+    private int offset(int row) {
+        return (row % rowsPerChunk) * rowBytes;
+    }
+
+    @Override
+    public float get(int row, int col) {
+        return chunk(row).getFloat(offset(row) + 4 * col);
+    }
+
+    public void set(int row, int col, float value) {
+        chunk(row).putFloat(offset(row) + 4 * col, value);
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        ByteBuffer chunk = chunk(row);
+        int start = offset(row);
+        for (int i = 0; i < dimensionality; i++) {
+            dest[destOffset + i] = chunk.getFloat(start + 4 * i);
+        }
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        return VectorKernels.dot(chunk(row), offset(row), query, offset, dimensionality);
+    }
+
+    /**
+     * Returns a heap copy; changes to it are not reflected in the storage (use getBuffer to write a row)
+     */
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality];
+        copyRow(row, vector, 0);
+        return WordEmbedding.view(vector, 0, dimensionality);
+    }
+
+    /**
+     * Returns a buffer over the storage itself; writes to it change the stored vector. The buffer stays valid after
+     * the storage is closed.
+     */
+    @Override
+    public FloatBuffer getBuffer(int row) {
+        ByteBuffer slice = chunk(row).duplicate();
+        int start = offset(row);
+        // through Buffer so the calls resolve the same on Java 8 and later runtimes
+        ((Buffer) slice).limit(start + 4 * dimensionality);
+        ((Buffer) slice).position(start);
+        return slice.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * @return true unless the storage has been closed
+     */
+    @Override
+    public boolean supportsAdd() {
+        return chunks != null;
+    }
+
+    @Override
+    public int add(float[] vector, int offset) {
+        int row = allocate();
+        getBuffer(row).put(vector, offset, dimensionality);
+        return row;
+    }
+
+    /**
+     * Add a zeroed row to be filled in by the caller
+     * @return the index of the new row
+     */
+    public synchronized int allocate() {
+        ByteBuffer[] chunks = this.chunks;
+        if (chunks == null) throw new IllegalStateException("Storage has been closed");
+        if (size == nChunks * rowsPerChunk) {
+            if (nChunks == chunks.length) {
+                chunks = Arrays.copyOf(chunks, nChunks * 2);
+            }
+            chunks[nChunks++] = ByteBuffer.allocateDirect(rowsPerChunk * rowBytes).order(ByteOrder.nativeOrder());
+            this.chunks = chunks;
+        }
+        return size++;
+    }
+
+    @Override
+    public void normalizeRows() {
+        for (int row = 0; row < size; row++) {
+            ByteBuffer chunk = chunk(row);
+            int start = offset(row);
+            double mag = Math.sqrt(VectorKernels.squaredNorm(chunk, start, dimensionality));
+            if (mag == 0) continue;
+            for (int i = start; i < start + 4 * dimensionality; i += 4) {
+                chunk.putFloat(i, (float) (chunk.getFloat(i) / mag));
+            }
+        }
+    }
+
+    /**
+     * Copy a subset of rows into new off-heap storage
+     */
+    @Override
+    public VectorStorage select(int[] rows) {
+        OffHeapVectorStorage selected = new OffHeapVectorStorage(dimensionality, rows.length);
+        for (int row : rows) {
+            selected.getBuffer(selected.allocate()).put(getBuffer(row));
+        }
+        return selected;
+    }
+
+    /**
+     * @return the bytes of native memory allocated (0 once closed)
+     */
+    public synchronized long allocatedBytes() {
+        return chunks == null ? 0 : (long) nChunks * rowsPerChunk * rowBytes;
+    }
+
+    /**
+     * Drop the storage's references to its chunks so their native memory can be collected. Buffers already handed out
+     * by getBuffer keep working (and keep their chunk alive) until they are unreachable. Does nothing if already closed.
+     */
+    @Override
+    public synchronized void close() {
+        chunks = null;
+    }
+}
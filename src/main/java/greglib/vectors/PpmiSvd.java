@@ -0,0 +1,388 @@
+package greglib.vectors;
+
+import greglib.util.Threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Derives dense Embeddings from co-occurrence counts: counts are weighted by positive pointwise mutual information
+ * (with the context distribution smoothed, as in Levy, Goldberg and Dagan 2015), then factored with a randomized
+ * truncated SVD (Halko, Martinsson and Tropp 2011). Each word's vector is its row of U scaled by the singular
+ * values raised to a power (0.5 by default).
+ *
+ * The sparse products run on CooccMatrix.multiply and the dense steps (orthonormalization by Cholesky QR) are split
+ * across the shared pool by rows; only a few (dimensionality + oversampling)-square matrices are handled on one
+ * thread. Working memory is a few dense matrices of rows x (dimensionality + oversampling) doubles.
+ */
+public class PpmiSvd {
+
+    private static final Logger LOGGER = Logger.getLogger(PpmiSvd.class.getName());
+
+    // rows per task for the dense steps
+    private static final int ROW_GRAIN = 1 << 11;
+    // the largest array the dense steps may allocate (a little under Integer.MAX_VALUE, as JVMs reserve header words)
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final int dimensionality;
+    private double smoothing = 0.75;
+    private int oversampling = 10;
+    private int powerIterations = 2;
+    private double eigenvalueWeight = 0.5;
+    private long seed = 0;
+
+    /**
+     * @param dimensionality the length of the vectors to produce
+     */
+    public PpmiSvd(int dimensionality) {
+        this.dimensionality = dimensionality;
+    }
+
+    /**
+     * @param smoothing exponent applied to context counts before computing PMI (1 for no smoothing)
+     */
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @param oversampling how many random directions beyond the dimensionality to sample, for accuracy
+     */
+    public void setOversampling(int oversampling) {
+        this.oversampling = oversampling;
+    }
+
+    /**
+     * @param powerIterations how many extra passes over the matrix to sharpen the sampled subspace
+     */
+    public void setPowerIterations(int powerIterations) {
+        this.powerIterations = powerIterations;
+    }
+
+    /**
+     * @param eigenvalueWeight power of the singular values that vectors are scaled by (0 for none, 1 for full)
+     */
+    public void setEigenvalueWeight(double eigenvalueWeight) {
+        this.eigenvalueWeight = eigenvalueWeight;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Weight counts by positive PMI with smoothed context probabilities:
+     * max(0, log(count(w,c) * sum(count(c')^alpha) / (count(w) * count(c)^alpha)))
+     * @param counts raw co-occurrence counts
+     * @param alpha smoothing exponent for context counts
+     * @return a new matrix holding only the positive entries
+     */
+    public static CooccMatrix ppmi(CooccMatrix counts, double alpha) {
+        double[] rowSums = counts.rowSums();
+        double[] contexts = counts.columnSums();
+        double total = 0;
+        for (int c = 0; c < contexts.length; c++) {
+            contexts[c] = Math.pow(contexts[c], alpha);
+            total += contexts[c];
+        }
+        final double smoothedTotal = total;
+        return counts.transform((row, column, count) -> {
+            double pmi = Math.log(count * smoothedTotal / (rowSums[row] * contexts[column]));
+            return pmi > 0 ? pmi : 0;
+        });
+    }
+
+    /**
+     * Weight counts by PPMI and factor them into embeddings
+     * @param counts raw co-occurrence counts, e.g. from CooccCounter
+     * @return an embedding for every row of the matrix
+     */
+    public Embeddings embed(CooccMatrix counts) {
+        long start = System.currentTimeMillis();
+        CooccMatrix weighted = ppmi(counts, smoothing);
+        LOGGER.info("PPMI kept " + weighted.nonZeroCount() + " of " + counts.nonZeroCount() + " entries in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return factor(weighted);
+    }
+
+    /**
+     * Factor an (already weighted) matrix into embeddings with a randomized truncated SVD
+     * @return an embedding for every row of the matrix
+     */
+    public Embeddings factor(CooccMatrix matrix) {
+        long start = System.currentTimeMillis();
+        int n = matrix.rows();
+        int l = Math.min(dimensionality + oversampling, Math.min(n, matrix.columns()));
+        if (l < dimensionality) {
+            throw new IllegalArgumentException("Can't find " + dimensionality + " dimensions in a " + n + "x"
+                    + matrix.columns() + " matrix");
+        }
+        // every dense index below is row * l + column, so the whole matrices must fit in an array
+        long denseLength = (long) Math.max(n, matrix.columns()) * l;
+        if (denseLength > MAX_ARRAY_LENGTH) {
+            throw new IllegalArgumentException("A " + n + "x" + matrix.columns() + " matrix needs dense matrices of "
+                    + Math.max(n, matrix.columns()) + "x" + l + " (" + denseLength + " doubles), more than fit in an "
+                    + "array; reduce the vocabulary, dimensionality or oversampling");
+        }
+        CooccMatrix transpose = matrix.transpose();
+
+        // sample the range of the matrix: Y = A * Omega, sharpened by power iterations
+        Random random = new Random(seed);
+        double[] omega = new double[matrix.columns() * l];
+        for (int i = 0; i < omega.length; i++) {
+            omega[i] = random.nextGaussian();
+        }
+        double[] y = new double[n * l];
+        matrix.multiply(omega, l, y);
+        for (int q = 0; q < powerIterations; q++) {
+            orthonormalize(y, n, l);
+            transpose.multiply(y, l, omega);
+            orthonormalize(omega, matrix.columns(), l);
+            matrix.multiply(omega, l, y);
+        }
+        orthonormalize(y, n, l);
+
+        // B = Q^T A is small; its singular vectors come from the eigenvectors of B B^T = (A^T Q)^T (A^T Q)
+        transpose.multiply(y, l, omega);
+        double[] bbt = gram(omega, matrix.columns(), l);
+        double[] eigenvectors = new double[l * l];
+        double[] eigenvalues = symmetricEigen(bbt, l, eigenvectors);
+        Integer[] order = new Integer[l];
+        for (int i = 0; i < l; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(eigenvalues[b], eigenvalues[a]));
+
+        // U = Q * V, keeping the top components, each scaled by sigma^weight
+        double[] projection = new double[l * dimensionality];
+        for (int t = 0; t < dimensionality; t++) {
+            int component = order[t];
+            double sigma = Math.sqrt(Math.max(0, eigenvalues[component]));
+            double scale = Math.pow(sigma, eigenvalueWeight);
+            for (int s = 0; s < l; s++) {
+                projection[s * dimensionality + t] = eigenvectors[s * l + component] * scale;
+            }
+        }
+        ArrayVectorStorage storage = new ArrayVectorStorage(dimensionality, n);
+        float[] vector = new float[dimensionality];
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(vector, 0);
+            for (int s = 0; s < l; s++) {
+                double q = y[i * l + s];
+                if (q == 0) continue;
+                for (int t = 0; t < dimensionality; t++) {
+                    vector[t] += q * projection[s * dimensionality + t];
+                }
+            }
+            storage.add(vector, 0);
+        }
+        List<String> terms = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            terms.add(matrix.getSpace().getWord(i));
+        }
+        LOGGER.info(String.format("Factored %dx%d matrix into %d dimensions in %d ms (top singular value %.4g)",
+                n, matrix.columns(), dimensionality, System.currentTimeMillis() - start,
+                Math.sqrt(Math.max(0, eigenvalues[order[0]]))));
+        return new Embeddings(terms, storage);
+    }
+
+    /**
+     * Orthonormalize the columns of a dense n x l matrix in place by Cholesky QR, done twice for accuracy.
+     * The first pass is shifted slightly so that rank-deficient inputs still factor.
+     */
+    static void orthonormalize(double[] y, int n, int l) {
+        for (int pass = 0; pass < 2; pass++) {
+            double[] g = gram(y, n, l);
+            double trace = 0;
+            for (int i = 0; i < l; i++) {
+                trace += g[i * l + i];
+            }
+            if (trace == 0) return;
+            double shift = (pass == 0 ? 1e-12 : 1e-15) * trace;
+            for (int i = 0; i < l; i++) {
+                g[i * l + i] += shift;
+            }
+            double[] r = cholesky(g, l);
+            Threading.getPool().invoke(new SolveTask(y, l, r, 0, n));
+        }
+    }
+
+    /**
+     * @return Y^T Y for a dense n x l matrix Y, summed over row blocks in parallel
+     */
+    static double[] gram(double[] y, int n, int l) {
+        return Threading.getPool().invoke(new GramTask(y, l, 0, n));
+    }
+
+    private static class GramTask extends RecursiveTask<double[]> {
+        private final double[] y;
+        private final int l;
+        private final int begin;
+        private final int end;
+
+        GramTask(double[] y, int l, int begin, int end) {
+            this.y = y;
+            this.l = l;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (end - begin <= ROW_GRAIN) {
+                double[] g = new double[l * l];
+                for (int row = begin; row < end; row++) {
+                    int base = row * l;
+                    for (int i = 0; i < l; i++) {
+                        double yi = y[base + i];
+                        if (yi == 0) continue;
+                        for (int j = i; j < l; j++) {
+                            g[i * l + j] += yi * y[base + j];
+                        }
+                    }
+                }
+                for (int i = 0; i < l; i++) {
+                    for (int j = 0; j < i; j++) {
+                        g[i * l + j] = g[j * l + i];
+                    }
+                }
+                return g;
+            }
+            int middle = (begin + end) >>> 1;
+            GramTask left = new GramTask(y, l, begin, middle);
+            left.fork();
+            double[] g = new GramTask(y, l, middle, end).compute();
+            double[] other = left.join();
+            for (int i = 0; i < g.length; i++) {
+                g[i] += other[i];
+            }
+            return g;
+        }
+    }
+
+    /**
+     * @return upper triangular R with R^T R = G, for symmetric positive definite G
+     */
+    private static double[] cholesky(double[] g, int l) {
+        double[] r = new double[l * l];
+        for (int j = 0; j < l; j++) {
+            double diagonal = g[j * l + j];
+            for (int k = 0; k < j; k++) {
+                diagonal -= r[k * l + j] * r[k * l + j];
+            }
+            if (diagonal <= 0) throw new ArithmeticException("Matrix is not positive definite");
+            double rjj = Math.sqrt(diagonal);
+            r[j * l + j] = rjj;
+            for (int i = j + 1; i < l; i++) {
+                double sum = g[j * l + i];
+                for (int k = 0; k < j; k++) {
+                    sum -= r[k * l + j] * r[k * l + i];
+                }
+                r[j * l + i] = sum / rjj;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Replaces each row y of a dense matrix with the x solving x R = y (i.e. Y becomes Y R^-1)
+     */
+    private static class SolveTask extends RecursiveAction {
+        private final double[] y;
+        private final int l;
+        private final double[] r;
+        private final int begin;
+        private final int end;
+
+        SolveTask(double[] y, int l, double[] r, int begin, int end) {
+            this.y = y;
+            this.l = l;
+            this.r = r;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= ROW_GRAIN) {
+                for (int row = begin; row < end; row++) {
+                    int base = row * l;
+                    for (int j = 0; j < l; j++) {
+                        double sum = y[base + j];
+                        for (int i = 0; i < j; i++) {
+                            sum -= y[base + i] * r[i * l + j];
+                        }
+                        y[base + j] = sum / r[j * l + j];
+                    }
+                }
+                return;
+            }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new SolveTask(y, l, r, begin, middle), new SolveTask(y, l, r, middle, end));
+        }
+    }
+
+    /**
+     * Eigen-decomposition of a small symmetric matrix by cyclic Jacobi rotations
+     * @param a symmetric l x l matrix (destroyed)
+     * @param vectors l x l matrix to hold the eigenvectors, one per column
+     * @return the eigenvalues, in the same order as the eigenvector columns
+     */
+    static double[] symmetricEigen(double[] a, int l, double[] vectors) {
+        Arrays.fill(vectors, 0);
+        for (int i = 0; i < l; i++) {
+            vectors[i * l + i] = 1;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            double total = 0;
+            for (int i = 0; i < l; i++) {
+                for (int j = 0; j < l; j++) {
+                    double x = a[i * l + j] * a[i * l + j];
+                    total += x;
+                    if (i != j) off += x;
+                }
+            }
+            if (off <= 1e-24 * total) break;
+            for (int p = 0; p < l; p++) {
+                for (int q = p + 1; q < l; q++) {
+                    double apq = a[p * l + q];
+                    if (apq == 0) continue;
+                    double theta = (a[q * l + q] - a[p * l + p]) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) t = 1;
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < l; k++) {
+                        double akp = a[k * l + p];
+                        double akq = a[k * l + q];
+                        a[k * l + p] = c * akp - s * akq;
+                        a[k * l + q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < l; k++) {
+                        double apk = a[p * l + k];
+                        double aqk = a[q * l + k];
+                        a[p * l + k] = c * apk - s * aqk;
+                        a[q * l + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < l; k++) {
+                        double vkp = vectors[k * l + p];
+                        double vkq = vectors[k * l + q];
+                        vectors[k * l + p] = c * vkp - s * vkq;
+                        vectors[k * l + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        double[] values = new double[l];
+        for (int i = 0; i < l; i++) {
+            values[i] = a[i * l + i];
+        }
+        return values;
+    }
+}
@@ -0,0 +1,202 @@
+package greglib.vectors;
+
+import greglib.util.Threading;
+import greglib.util.TopKHeap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Storage holding product-quantized codes instead of floats: one byte per subspace of a ProductQuantizer, e.g. 50
+ * bytes rather than 1.2 KB for a 300-dimensional vector. Rows read back as their (approximate) reconstructions.
+ *
+ * Scans use asymmetric distance: the query is scored once against every centroid, then each row costs one lookup
+ * per subspace. Scores are approximate; setRerank keeps extra candidates and rescores them against exact vectors
+ * (for instance a memory-mapped snapshot) so only the final candidates touch full-precision data.
+ */
+public class PqVectorStorage extends VectorStorage {
+
+    private static final int ENCODE_GRAIN = 1 << 12;
+
+    private final ProductQuantizer quantizer;
+    private final int size;
+    private final int codeLength;
+    private final byte[] codes;
+    // per-row scale applied to reconstructions, set by normalizeRows
+    private float[] scales;
+    private VectorStorage exact;
+    private int rerankFactor;
+
+    public PqVectorStorage(ProductQuantizer quantizer, byte[] codes) {
+        this.quantizer = quantizer;
+        codeLength = quantizer.subspaces();
+        if (codes.length % codeLength != 0) {
+            throw new IllegalArgumentException("Codes must be a multiple of " + codeLength + " bytes");
+        }
+        this.codes = codes;
+        size = codes.length / codeLength;
+    }
+
+    /**
+     * Quantize every row of a storage (in parallel)
+     * @param source the vectors to quantize
+     * @param quantizer a quantizer trained for vectors like these
+     * @return storage holding the codes
+     */
+    public static PqVectorStorage encode(VectorStorage source, ProductQuantizer quantizer) {
+        if (source.dimensionality() != quantizer.dimensionality()) {
+            throw new IllegalArgumentException("Quantizer is for " + quantizer.dimensionality()
+                    + " dimensions, not " + source.dimensionality());
+        }
+        byte[] codes = new byte[source.size() * quantizer.subspaces()];
+        Threading.getPool().invoke(new EncodeTask(source, quantizer, codes, 0, source.size()));
+        return new PqVectorStorage(quantizer, codes);
+    }
+
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * Rescore the best candidates of every scan against exact vectors
+     * @param exact full-precision vectors for the same rows (already normalized if this storage is), or null to
+     *              return approximate scores
+     * @param factor how many candidates to keep per result wanted
+     */
+    public void setRerank(@Nullable VectorStorage exact, int factor) {
+        if (exact != null && (exact.size() != size || exact.dimensionality() != dimensionality())) {
+            throw new IllegalArgumentException("Exact vectors don't match the quantized vectors");
+        }
+        this.exact = exact;
+        rerankFactor = Math.max(1, factor);
+    }
+
+    @Override
+    public int dimensionality() {
+        return quantizer.dimensionality();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private float scale(int row) {
+        return scales == null ? 1 : scales[row];
+    }
+
+    @Override
+    public float get(int row, int col) {
+        // only the subspace holding this column needs decoding
+        int s = (int) ((long) col * codeLength / dimensionality());
+        while (quantizer.start(s + 1) <= col) s++;
+        while (quantizer.start(s) > col) s--;
+        int centroid = codes[row * codeLength + s] & 0xff;
+        float value = quantizer.codebooks()[quantizer.codebookOffset(s) + centroid * quantizer.width(s)
+                + col - quantizer.start(s)];
+        return value * scale(row);
+    }
+
+    @Override
+    public void copyRow(int row, float[] dest, int destOffset) {
+        quantizer.decode(codes, row * codeLength, dest, destOffset);
+        float scale = scale(row);
+        if (scale != 1) {
+            for (int i = destOffset; i < destOffset + dimensionality(); i++) {
+                dest[i] *= scale;
+            }
+        }
+    }
+
+    @Override
+    public double dot(int row, float[] query, int offset) {
+        return quantizer.dot(codes, row * codeLength, query, offset) * scale(row);
+    }
+
+    @Override
+    public void scan(float[] query, int offset, int begin, int end, TopKHeap heap) {
+        float[] table = new float[codeLength * ProductQuantizer.MAX_CENTROIDS];
+        quantizer.innerProductTable(query, offset, table);
+        for (int row = begin; row < end; row++) {
+            int base = row * codeLength;
+            float sum = 0;
+            for (int s = 0, t = 0; s < codeLength; s++, t += ProductQuantizer.MAX_CENTROIDS) {
+                sum += table[t + (codes[base + s] & 0xff)];
+            }
+            heap.offer(row, sum * scale(row));
+        }
+    }
+
+    @Override
+    public boolean scansIndividually() {
+        return true;
+    }
+
+    @Override
+    public int candidates(int k) {
+        return exact == null ? k : k * rerankFactor;
+    }
+
+    @Override
+    public TopKHeap rerank(TopKHeap candidates, float[] query, int offset, int k) {
+        if (exact == null) return candidates;
+        candidates.sort();
+        TopKHeap top = new TopKHeap(Math.min(k, candidates.size()));
+        for (int i = 0; i < candidates.size(); i++) {
+            int row = candidates.getIndex(i);
+            top.offer(row, exact.dot(row, query, offset));
+        }
+        return top;
+    }
+
+    @Override
+    public WordEmbedding getEmbedding(int row) {
+        float[] vector = new float[dimensionality()];
+        copyRow(row, vector, 0);
+        return new WordEmbedding(vector);
+    }
+
+    /**
+     * Codes can't be rescaled in place, so this keeps a scale factor per row (4 extra bytes per row)
+     */
+    @Override
+    public synchronized void normalizeRows() {
+        float[] newScales = new float[size];
+        for (int row = 0; row < size; row++) {
+            double norm = Math.sqrt(quantizer.squaredNorm(codes, row * codeLength));
+            newScales[row] = norm == 0 ? 1 : (float) (1 / norm);
+        }
+        scales = newScales;
+    }
+
+    private static class EncodeTask extends RecursiveAction {
+        private final VectorStorage source;
+        private final ProductQuantizer quantizer;
+        private final byte[] codes;
+        private final int begin;
+        private final int end;
+
+        EncodeTask(VectorStorage source, ProductQuantizer quantizer, byte[] codes, int begin, int end) {
+            this.source = source;
+            this.quantizer = quantizer;
+            this.codes = codes;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= ENCODE_GRAIN) {
+                float[] vector = new float[source.dimensionality()];
+                for (int row = begin; row < end; row++) {
+                    source.copyRow(row, vector, 0);
+                    quantizer.encode(vector, 0, codes, row * quantizer.subspaces());
+                }
+                return;
+            }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new EncodeTask(source, quantizer, codes, begin, middle),
+                    new EncodeTask(source, quantizer, codes, middle, end));
+        }
+    }
+}
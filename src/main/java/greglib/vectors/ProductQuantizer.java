@@ -0,0 +1,282 @@
+package greglib.vectors;
+
+import greglib.util.Threading;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Splits vectors into contiguous subspaces and quantizes each subspace to one of (up to) 256 centroids, so a vector
+ * can be stored as one byte per subspace. Codebooks are learned with k-means on a sample of the vectors.
+ *
+ * Dot products of a full-precision query with coded vectors are computed asymmetrically: innerProductTable scores
+ * the query against every centroid once, after which each coded vector costs one table lookup per subspace.
+ */
+public class ProductQuantizer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(ProductQuantizer.class.getName());
+
+    public static final int MAX_CENTROIDS = 256;
+
+    private final int dimensionality;
+    private final int subspaces;
+    private final int centroids;
+    // subspace s covers dimensions starts[s] until starts[s+1]
+    private final int[] starts;
+    // centroid c of subspace s starts at MAX_CENTROIDS * starts[s] + c * width(s)
+    private final float[] codebooks;
+
+    private ProductQuantizer(int dimensionality, int subspaces, int centroids) {
+        if (subspaces < 1 || subspaces > dimensionality) {
+            throw new IllegalArgumentException("Can't split " + dimensionality + " dimensions into " + subspaces
+                    + " subspaces");
+        }
+        this.dimensionality = dimensionality;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        starts = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            starts[s] = (int) ((long) s * dimensionality / subspaces);
+        }
+        codebooks = new float[MAX_CENTROIDS * dimensionality];
+    }
+
+    /**
+     * Learn codebooks from (a sample of) the rows of a storage
+     * @param source the vectors to learn from
+     * @param subspaces how many subspaces to split vectors into, i.e. bytes per coded vector
+     * @param sampleSize how many rows to train on at most
+     * @param iterations how many rounds of k-means to run at most
+     * @param seed random seed for sampling and initialization
+     * @return a trained quantizer
+     */
+    public static ProductQuantizer train(VectorStorage source, int subspaces, int sampleSize, int iterations,
+                                         long seed) {
+        int dim = source.dimensionality();
+        Random random = new Random(seed);
+
+        // partial shuffle: the first n rows of the order are a uniform sample
+        int n = Math.min(sampleSize, source.size());
+        if (n < 1) throw new IllegalArgumentException("Nothing to train on");
+        int[] order = new int[source.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < n; i++) {
+            int j = i + random.nextInt(order.length - i);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        float[] sample = new float[n * dim];
+        for (int i = 0; i < n; i++) {
+            source.copyRow(order[i], sample, i * dim);
+        }
+
+        ProductQuantizer pq = new ProductQuantizer(dim, subspaces, Math.min(MAX_CENTROIDS, n));
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int s = 0; s < subspaces; s++) {
+            final int subspace = s;
+            final long subspaceSeed = random.nextLong();
+            tasks.add(() -> pq.kMeans(subspace, sample, n, iterations, new Random(subspaceSeed)));
+        }
+        try {
+            int rounds = 0;
+            for (Future<Integer> future : Threading.getPool().invokeAll(tasks)) {
+                rounds += future.get();
+            }
+            LOGGER.info(String.format("Trained %d codebooks of %d centroids on %d vectors (%.1f rounds on average)",
+                    subspaces, pq.centroids, n, rounds / (double) subspaces));
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+        return pq;
+    }
+
+    /**
+     * Run k-means for a single subspace, storing the centroids in its codebook
+     * @return the number of rounds run
+     */
+    private int kMeans(int s, float[] sample, int n, int iterations, Random random) {
+        int dim = dimensionality;
+        int start = starts[s];
+        int width = width(s);
+        int book = codebookOffset(s);
+
+        // initialize with distinct sample vectors
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int c = 0; c < centroids; c++) {
+            int j = c + random.nextInt(n - c);
+            int swap = order[c];
+            order[c] = order[j];
+            order[j] = swap;
+            System.arraycopy(sample, order[c] * dim + start, codebooks, book + c * width, width);
+        }
+
+        int[] assignment = new int[n];
+        double[] sums = new double[centroids * width];
+        int[] counts = new int[centroids];
+        int round = 0;
+        boolean changed = true;
+        while (changed && round < iterations) {
+            changed = false;
+            for (int i = 0; i < n; i++) {
+                int nearest = nearest(s, sample, i * dim + start);
+                if (round == 0 || nearest != assignment[i]) {
+                    changed = true;
+                    assignment[i] = nearest;
+                }
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                int c = assignment[i];
+                counts[c]++;
+                for (int d = 0; d < width; d++) {
+                    sums[c * width + d] += sample[i * dim + start + d];
+                }
+            }
+            for (int c = 0; c < centroids; c++) {
+                if (counts[c] == 0) {
+                    // reseed an empty cluster at a random sample vector
+                    System.arraycopy(sample, random.nextInt(n) * dim + start, codebooks, book + c * width, width);
+                    changed = true;
+                } else {
+                    for (int d = 0; d < width; d++) {
+                        codebooks[book + c * width + d] = (float) (sums[c * width + d] / counts[c]);
+                    }
+                }
+            }
+            round++;
+        }
+        return round;
+    }
+
+    private int nearest(int s, float[] vector, int offset) {
+        int width = width(s);
+        int book = codebookOffset(s);
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids; c++) {
+            double distance = VectorKernels.squaredDistance(vector, offset, codebooks, book + c * width, width);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    /**
+     * @return the number of subspaces, which is also the number of bytes in a code
+     */
+    public int subspaces() {
+        return subspaces;
+    }
+
+    int start(int s) {
+        return starts[s];
+    }
+
+    int width(int s) {
+        return starts[s + 1] - starts[s];
+    }
+
+    int codebookOffset(int s) {
+        return MAX_CENTROIDS * starts[s];
+    }
+
+    float[] codebooks() {
+        return codebooks;
+    }
+
+    /**
+     * Quantize a vector
+     * @param vector array holding the vector
+     * @param offset where in the array the vector starts
+     * @param codes array to hold the code, subspaces() bytes
+     * @param codesOffset where in codes to write
+     */
+    public void encode(float[] vector, int offset, byte[] codes, int codesOffset) {
+        for (int s = 0; s < subspaces; s++) {
+            codes[codesOffset + s] = (byte) nearest(s, vector, offset + starts[s]);
+        }
+    }
+
+    /**
+     * Reconstruct the (approximate) vector for a code
+     * @param codes array holding the code
+     * @param codesOffset where in the array the code starts
+     * @param dest array to hold the vector
+     * @param destOffset where in dest to write
+     */
+    public void decode(byte[] codes, int codesOffset, float[] dest, int destOffset) {
+        for (int s = 0; s < subspaces; s++) {
+            int width = width(s);
+            int centroid = codes[codesOffset + s] & 0xff;
+            System.arraycopy(codebooks, codebookOffset(s) + centroid * width, dest, destOffset + starts[s], width);
+        }
+    }
+
+    /**
+     * Dot product of a full-precision query with a quantized vector, without building the reconstruction
+     */
+    public double dot(byte[] codes, int codesOffset, float[] query, int queryOffset) {
+        double sum = 0;
+        for (int s = 0; s < subspaces; s++) {
+            int width = width(s);
+            int centroid = codes[codesOffset + s] & 0xff;
+            sum += VectorKernels.dot(codebooks, codebookOffset(s) + centroid * width, query, queryOffset + starts[s],
+                    width);
+        }
+        return sum;
+    }
+
+    /**
+     * Squared length of the reconstruction of a code. Subspaces are disjoint, so this is the sum of the squared
+     * lengths of its centroids.
+     */
+    public double squaredNorm(byte[] codes, int codesOffset) {
+        double sum = 0;
+        for (int s = 0; s < subspaces; s++) {
+            int width = width(s);
+            int centroid = codes[codesOffset + s] & 0xff;
+            sum += VectorKernels.squaredNorm(codebooks, codebookOffset(s) + centroid * width, width);
+        }
+        return sum;
+    }
+
+    /**
+     * Score a query against every centroid of every subspace
+     * @param query array holding the query vector
+     * @param offset where in the array the query vector starts
+     * @param table array of at least subspaces() * MAX_CENTROIDS floats; the dot product of the query with centroid c
+     *              of subspace s is written to s * MAX_CENTROIDS + c
+     */
+    public void innerProductTable(float[] query, int offset, float[] table) {
+        for (int s = 0; s < subspaces; s++) {
+            int width = width(s);
+            int book = codebookOffset(s);
+            for (int c = 0; c < centroids; c++) {
+                table[s * MAX_CENTROIDS + c] = (float) VectorKernels.dot(codebooks, book + c * width, query,
+                        offset + starts[s], width);
+            }
+        }
+    }
+}
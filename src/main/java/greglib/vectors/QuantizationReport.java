@@ -0,0 +1,141 @@
+package greglib.vectors;
+
+import greglib.io.Word2vecReader;
+import greglib.util.TopKHeap;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Measures how closely a compressed storage reproduces similarity search over a full-precision one: the overlap of
+ * their top-K lists and the error of their scores, for random rows used as queries.
+ * Usage: QuantizationReport word2vecBinFile [k] [number of queries]
+ */
+public class QuantizationReport {
+
+    private static final Logger LOGGER = Logger.getLogger(QuantizationReport.class.getName());
+
+    private final int k;
+    private final int queries;
+    private final double topKOverlap;
+    private final double meanScoreError;
+    private final double maxScoreError;
+    private final double baselineNanosPerRow;
+    private final double quantizedNanosPerRow;
+
+    private QuantizationReport(int k, int queries, double topKOverlap, double meanScoreError, double maxScoreError,
+                               double baselineNanosPerRow, double quantizedNanosPerRow) {
+        this.k = k;
+        this.queries = queries;
+        this.topKOverlap = topKOverlap;
+        this.meanScoreError = meanScoreError;
+        this.maxScoreError = maxScoreError;
+        this.baselineNanosPerRow = baselineNanosPerRow;
+        this.quantizedNanosPerRow = quantizedNanosPerRow;
+    }
+
+    /**
+     * Compare top-K search over two storages of the same vectors
+     * @param baseline full-precision vectors
+     * @param quantized the same vectors, compressed (any rerank it is set up for is included)
+     * @param k how many results to compare per query
+     * @param queries how many rows of the baseline to use as queries
+     * @param seed random seed for picking queries
+     */
+    public static QuantizationReport compare(VectorStorage baseline, VectorStorage quantized, int k, int queries,
+                                             long seed) {
+        if (baseline.size() != quantized.size() || baseline.dimensionality() != quantized.dimensionality()) {
+            throw new IllegalArgumentException("Storages don't hold the same number or size of vectors");
+        }
+        int n = baseline.size();
+        k = Math.min(k, n);
+        Random random = new Random(seed);
+        float[] query = new float[baseline.dimensionality()];
+        long overlap = 0;
+        long scored = 0;
+        double errorSum = 0;
+        double maxError = 0;
+        long baselineNanos = 0;
+        long quantizedNanos = 0;
+        for (int q = 0; q < queries; q++) {
+            baseline.copyRow(random.nextInt(n), query, 0);
+
+            long start = System.nanoTime();
+            TopKHeap exact = new TopKHeap(k);
+            baseline.scan(query, 0, 0, n, exact);
+            exact.sort();
+            baselineNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            TopKHeap approx = new TopKHeap(Math.min(quantized.candidates(k), n));
+            quantized.scan(query, 0, 0, n, approx);
+            approx = quantized.rerank(approx, query, 0, k).sort();
+            quantizedNanos += System.nanoTime() - start;
+
+            for (int i = 0; i < exact.size(); i++) {
+                int row = exact.getIndex(i);
+                for (int j = 0; j < approx.size(); j++) {
+                    if (approx.getIndex(j) == row) {
+                        overlap++;
+                        break;
+                    }
+                }
+                double error = Math.abs(quantized.dot(row, query, 0) - exact.getScore(i));
+                errorSum += error;
+                maxError = Math.max(maxError, error);
+                scored++;
+            }
+        }
+        return new QuantizationReport(k, queries, overlap / (double) Math.max(1, scored),
+                errorSum / Math.max(1, scored), maxError, baselineNanos / ((double) queries * n),
+                quantizedNanos / ((double) queries * n));
+    }
+
+    /**
+     * @return the fraction of the baseline's top k results that the quantized storage also returned
+     */
+    public double getTopKOverlap() {
+        return topKOverlap;
+    }
+
+    /**
+     * @return the mean absolute difference between quantized and baseline scores of the baseline's top k results
+     */
+    public double getMeanScoreError() {
+        return meanScoreError;
+    }
+
+    public double getMaxScoreError() {
+        return maxScoreError;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("top-%d overlap %.4f, score error mean %.5f max %.5f, scan %.2f vs %.2f ns/row"
+                        + " (%d queries)", k, topKOverlap, meanScoreError, maxScoreError, quantizedNanosPerRow,
+                baselineNanosPerRow, queries);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        Embeddings embeddings = Word2vecReader.readBinFile(args[0]);
+        embeddings.normalizeAll();
+        VectorStorage baseline = embeddings.getStorage();
+        int dim = baseline.dimensionality();
+
+        VectorStorage[] candidates = {
+                Float16VectorStorage.encode(baseline),
+                Int8VectorStorage.encode(baseline, false),
+                Int8VectorStorage.encode(baseline, true)
+        };
+        String[] names = {"float16", "int8 per vector", "int8 per dimension"};
+        int[] bytesPerVector = {2 * dim, dim + 4, dim + 4};
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i].normalizeRows();
+            LOGGER.info(String.format("%-20s %5d bytes/vector (float: %d)  %s", names[i], bytesPerVector[i], 4 * dim,
+                    compare(baseline, candidates[i], k, queries, 0)));
+        }
+    }
+}
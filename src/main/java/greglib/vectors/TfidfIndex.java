@@ -0,0 +1,320 @@
+package greglib.vectors;
+
+import greglib.util.Threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A compiled, read-only form of a TfidfVectorClassifier for fast scoring.
+ * Category vectors are normalized once and stored as an inverted index from each term to the (category, weight)
+ * pairs it appears in, so scoring a context only touches the postings of its own terms and fills in every
+ * category's score in a single pass.
+ *
+ * An index is immutable once built, so it can be shared between threads; batches and streams of contexts are
+ * classified in parallel on the shared pool from Threading.
+ */
+public class TfidfIndex {
+
+    // contexts per task when classifying a batch
+    private static final int CLASSIFY_GRAIN = 256;
+    // contexts read from a stream at a time
+    private static final int STREAM_BATCH = 1 << 14;
+
+    private final CooccVectorSpace space;
+    private final int categories;
+    // idf weight of every term in the space
+    private final double[] idf;
+    // postings of term t are at postingStarts[t] until postingStarts[t+1], in increasing category order
+    private final int[] postingStarts;
+    private final int[] postingCategories;
+    private final double[] postingWeights;
+    // per-thread term buffer for scoring token arrays
+    private final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[64]);
+
+    TfidfIndex(CooccVectorSpace space, CooccVector idfVector, List<CooccVector> vectors) {
+        this.space = space;
+        categories = vectors.size();
+        int terms = space.size();
+        idf = new double[terms];
+        idfVector.forEachEntry((term, weight) -> idf[term] = weight);
+
+        double[] norms = new double[categories];
+        postingStarts = new int[terms + 1];
+        for (int c = 0; c < categories; c++) {
+            norms[c] = vectors.get(c).mag();
+            if (norms[c] == 0) continue;
+            vectors.get(c).forEachEntry((term, weight) -> {
+                if (weight != 0) postingStarts[term + 1]++;
+            });
+        }
+        for (int t = 0; t < terms; t++) {
+            postingStarts[t + 1] += postingStarts[t];
+        }
+        postingCategories = new int[postingStarts[terms]];
+        postingWeights = new double[postingStarts[terms]];
+        int[] cursors = Arrays.copyOf(postingStarts, terms);
+        for (int c = 0; c < categories; c++) {
+            if (norms[c] == 0) continue;
+            final int category = c;
+            final double norm = norms[c];
+            vectors.get(c).forEachEntry((term, weight) -> {
+                if (weight != 0) {
+                    int posting = cursors[term]++;
+                    postingCategories[posting] = category;
+                    postingWeights[posting] = weight / norm;
+                }
+            });
+        }
+    }
+
+    public int categories() {
+        return categories;
+    }
+
+    /**
+     * @return the total number of (term, category) postings
+     */
+    public int postingCount() {
+        return postingWeights.length;
+    }
+
+    /**
+     * Cosine similarities between a tf-idf vector and every category (0 where a similarity is undefined)
+     * @param vector a vector from TfidfVectorClassifier.getTfidfVector
+     * @param scores array of at least categories() doubles to hold the similarities
+     */
+    public void scores(CooccVector vector, double[] scores) {
+        Arrays.fill(scores, 0, categories, 0);
+        double norm = vector.mag();
+        if (norm == 0) return;
+        vector.forEachEntry((term, weight) -> addPostings(term, weight, scores, 0));
+        for (int c = 0; c < categories; c++) {
+            scores[c] /= norm;
+        }
+    }
+
+    public double[] scores(CooccVector vector) {
+        double[] scores = new double[categories];
+        scores(vector, scores);
+        return scores;
+    }
+
+    /**
+     * Category probabilities for a tf-idf vector, its positive cosine similarities normalized (uniform if none)
+     * @param probabilities array of at least categories() doubles to hold the probabilities
+     */
+    public void probabilities(CooccVector vector, double[] probabilities) {
+        scores(vector, probabilities);
+        toProbabilities(probabilities, 0);
+    }
+
+    public double[] probabilities(CooccVector vector) {
+        double[] probabilities = new double[categories];
+        probabilities(vector, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Cosine similarities between a context and every category, without building its tf-idf vector.
+     * Tokens outside the vocabulary are ignored.
+     * @param scores array of at least categories() doubles to hold the similarities
+     */
+    public void scores(String[] tokens, double[] scores) {
+        scores(tokens, scores, 0);
+    }
+
+    /**
+     * Fill in categories() similarities starting at an offset, using this thread's scratch array
+     */
+    private void scores(String[] tokens, double[] scores, int offset) {
+        int end = offset + categories;
+        Arrays.fill(scores, offset, end, 0);
+        // terms are kept shifted left, with the low bit set for a negative sign (only in hashed spaces)
+        int[] terms = scratch(tokens.length);
+        int n = 0;
+        for (String token : tokens) {
+            int term = space.indexOf(token);
+            if (term < 0 || term >= idf.length) continue;
+            int sign = space.sign(token);
+            terms[n++] = term << 1 | (sign < 0 ? 1 : 0);
+            addPostings(term, sign * idf[term], scores, offset);
+        }
+        // the context's norm needs its (signed) term frequencies, which runs of sorted terms give
+        Arrays.sort(terms, 0, n);
+        double squaredNorm = 0;
+        for (int i = 0; i < n; ) {
+            int term = terms[i] >>> 1;
+            int frequency = 0;
+            while (i < n && terms[i] >>> 1 == term) {
+                frequency += (terms[i++] & 1) == 0 ? 1 : -1;
+            }
+            double weight = frequency * idf[term];
+            squaredNorm += weight * weight;
+        }
+        if (squaredNorm == 0) {
+            Arrays.fill(scores, offset, end, 0);
+            return;
+        }
+        double norm = Math.sqrt(squaredNorm);
+        for (int c = offset; c < end; c++) {
+            scores[c] /= norm;
+        }
+    }
+
+    private int[] scratch(int length) {
+        int[] terms = scratch.get();
+        if (terms.length < length) {
+            terms = new int[Math.max(length, terms.length * 2)];
+            scratch.set(terms);
+        }
+        return terms;
+    }
+
+    public double[] scores(String[] tokens) {
+        double[] scores = new double[categories];
+        scores(tokens, scores);
+        return scores;
+    }
+
+    /**
+     * Category probabilities for a context, its positive cosine similarities normalized (uniform if none)
+     * @param probabilities array of at least categories() doubles to hold the probabilities
+     */
+    public void probabilities(String[] tokens, double[] probabilities) {
+        scores(tokens, probabilities, 0);
+        toProbabilities(probabilities, 0);
+    }
+
+    public double[] probabilities(String[] tokens) {
+        double[] probabilities = new double[categories];
+        probabilities(tokens, probabilities);
+        return probabilities;
+    }
+
+    /**
+     * Category probabilities for a batch of contexts, classified in parallel on the shared pool
+     * @param contexts token arrays to classify
+     * @param probabilities array of at least contexts.size() * categories() doubles; the probabilities for context i
+     *                      are written from i * categories()
+     */
+    public void probabilities(List<String[]> contexts, double[] probabilities) {
+        if (probabilities.length < (long) contexts.size() * categories) {
+            throw new IllegalArgumentException("Need room for " + contexts.size() + " x " + categories
+                    + " probabilities, but got " + probabilities.length);
+        }
+        Threading.getPool().invoke(new ClassifyTask(contexts, probabilities, 0, contexts.size()));
+    }
+
+    /**
+     * Category probabilities for a batch of contexts, classified in parallel on the shared pool
+     * @return an array of categories() probabilities for each context, in order
+     */
+    public double[][] probabilities(List<String[]> contexts) {
+        double[] flat = new double[contexts.size() * categories];
+        probabilities(contexts, flat);
+        double[][] probabilities = new double[contexts.size()][];
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = Arrays.copyOfRange(flat, i * categories, (i + 1) * categories);
+        }
+        return probabilities;
+    }
+
+    /**
+     * Category probabilities for a stream of contexts. The stream is read in batches, each classified in parallel
+     * on the shared pool, so it is consumed lazily and results come out in the same order as the contexts.
+     * @return a stream of arrays of categories() probabilities
+     */
+    public Stream<double[]> probabilities(Stream<String[]> contexts) {
+        Iterator<String[]> source = contexts.iterator();
+        Iterator<double[]> results = new Iterator<double[]>() {
+            private double[][] batch = new double[0][];
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                if (position < batch.length) return true;
+                List<String[]> next = new ArrayList<>(STREAM_BATCH);
+                while (next.size() < STREAM_BATCH && source.hasNext()) {
+                    next.add(source.next());
+                }
+                batch = probabilities(next);
+                position = 0;
+                return batch.length > 0;
+            }
+
+            @Override
+            public double[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                double[] result = batch[position];
+                batch[position++] = null;
+                return result;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+                .onClose(contexts::close);
+    }
+
+    /**
+     * Classifies a range of contexts, splitting the range across workers
+     */
+    private class ClassifyTask extends RecursiveAction {
+        private final List<String[]> contexts;
+        private final double[] probabilities;
+        private final int begin;
+        private final int end;
+
+        ClassifyTask(List<String[]> contexts, double[] probabilities, int begin, int end) {
+            this.contexts = contexts;
+            this.probabilities = probabilities;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= CLASSIFY_GRAIN) {
+                for (int i = begin; i < end; i++) {
+                    scores(contexts.get(i), probabilities, i * categories);
+                    toProbabilities(probabilities, i * categories);
+                }
+                return;
+            }
+            int middle = (begin + end) >>> 1;
+            invokeAll(new ClassifyTask(contexts, probabilities, begin, middle),
+                    new ClassifyTask(contexts, probabilities, middle, end));
+        }
+    }
+
+    private void addPostings(int term, double weight, double[] scores, int offset) {
+        if (term >= idf.length) return;
+        for (int p = postingStarts[term]; p < postingStarts[term + 1]; p++) {
+            scores[offset + postingCategories[p]] += weight * postingWeights[p];
+        }
+    }
+
+    private void toProbabilities(double[] scores, int offset) {
+        int end = offset + categories;
+        double sum = 0;
+        for (int c = offset; c < end; c++) {
+            // similarities can only be negative with signed hashing; such categories get no probability
+            scores[c] = Math.max(0, scores[c]);
+            sum += scores[c];
+        }
+        if (sum == 0) {
+            Arrays.fill(scores, offset, end, 1. / categories);
+            return;
+        }
+        for (int c = offset; c < end; c++) {
+            scores[c] /= sum;
+        }
+    }
+}
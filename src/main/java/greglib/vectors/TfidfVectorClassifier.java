@@ -1,17 +1,33 @@
 package greglib.vectors;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * Build tf-idf vectors from a corpus all at once,
- * then continue to use them for classification.
+ * Build tf-idf vectors from a corpus, then continue to use them for classification.
+ * Raw counts are kept, so more labeled contexts can be added with train() at any time; the weighted vectors (and
+ * the compiled index) are rebuilt from the counts the next time they're used.
+ * Training should not run concurrently with classification.
  * TODO: test
  *
  * Created by greg on 5/25/18.
@@ -20,44 +36,145 @@ public class TfidfVectorClassifier {
 
     private static final Logger LOGGER = Logger.getLogger(TfidfVectorClassifier.class.getName());
 
-    private List<CooccVector> vectors = new ArrayList<>();
     private CooccVectorSpace space = new CooccVectorSpace();
-    CooccVector idfVector;
+    // raw token counts for each category and over all categories
+    private List<CooccVector> counts = new ArrayList<>();
+    private CooccVector termCounts = new CooccVector(space);
+    // weighted vectors derived from the counts, refreshed after training
+    private List<CooccVector> vectors = new ArrayList<>();
+    CooccVector idfVector = new CooccVector(space);
+    private volatile boolean stale;
+    // built on first use
+    private volatile TfidfIndex index;
 
-    // used only for deserialization
-    private TfidfVectorClassifier() {}
+    /**
+     * Create an empty classifier, to be trained incrementally
+     */
+    public TfidfVectorClassifier() {}
 
     public TfidfVectorClassifier(Iterable<ClassificationContext> classificationContexts) {
-        idfVector = new CooccVector(space);
+        train(classificationContexts);
+        refresh();
+    }
+
+    /**
+     * Create an empty classifier that hashes tokens into a fixed number of signed buckets instead of keeping a
+     * vocabulary, so its memory stays bounded however many distinct tokens it sees
+     * @param buckets the number of hash buckets
+     */
+    public static TfidfVectorClassifier hashed(int buckets) {
+        TfidfVectorClassifier tvc = new TfidfVectorClassifier();
+        tvc.space = CooccVectorSpace.hashed(buckets);
+        tvc.termCounts = new CooccVector(tvc.space);
+        tvc.idfVector = new CooccVector(tvc.space);
+        return tvc;
+    }
+
+    /**
+     * Add a labeled context to the counts
+     */
+    public synchronized void train(ClassificationContext cc) {
+        for (String token : cc.getTokens()) {
+            while (counts.size() <= cc.getCategory()) {
+                counts.add(new CooccVector(space));
+            }
+            counts.get(cc.getCategory()).incrementAndAdd(token, 1.);
+            // idf counts are never signed, even in a hashed space
+            termCounts.increment(space.getIndex(token), 1.);
+        }
+        stale = true;
+        index = null;
+    }
+
+    /**
+     * Add a batch of labeled contexts to the counts
+     */
+    public synchronized void train(Iterable<ClassificationContext> classificationContexts) {
         for (ClassificationContext cc : classificationContexts) {
-           for (String token : cc.getTokens()) {
-               while (vectors.size() <= cc.getCategory()) {
-                   vectors.add(new CooccVector(space));
-               }
-               vectors.get(cc.getCategory()).incrementAndAdd(token, 1.);
-               idfVector.increment(token, 1.);
-           }
+            train(cc);
         }
-        idfVector.applyElementwise(x -> Math.pow(x, -1));
-        vectors.forEach(v -> v.hadamard(idfVector));
+    }
+
+    /**
+     * Recompute idf weights and weighted category vectors from the counts if anything was trained since last time
+     */
+    private synchronized void refresh() {
+        if (!stale) return;
+        CooccVector idf = new CooccVector(termCounts);
+        idf.applyElementwise(x -> Math.pow(x, -1));
+        List<CooccVector> weighted = new ArrayList<>(counts.size());
+        for (CooccVector count : counts) {
+            CooccVector vector = new CooccVector(count);
+            vector.hadamard(idf);
+            weighted.add(vector);
+        }
+        idfVector = idf;
+        vectors = weighted;
+        stale = false;
     }
 
     public double getScore(int category, CooccVector vector) {
+        refresh();
         return vector.cosSim(vectors.get(category));
     }
 
     public double getProbability(int category, CooccVector vector) {
-        if (vector.mag() == 0) return 1./vectors.size();
-        List<Double> scores = vectors.stream()
-                .map(vector::cosSim)
-                .map(s -> Double.isNaN(s) ? 0 : s)
-                .collect(Collectors.toList());
-        double sum = scores.stream().mapToDouble(d -> d).sum();
-        if (sum == 0) return 1./vectors.size();
-        return scores.get(category) / sum;
+        return compile().probabilities(vector)[category];
+    }
+
+    /**
+     * @return the probabilities of every category for a tf-idf vector, scored in one pass
+     */
+    public double[] getProbabilities(CooccVector vector) {
+        return compile().probabilities(vector);
+    }
+
+    /**
+     * @return the probabilities of every category for a context, without building its tf-idf vector
+     */
+    public double[] getProbabilities(String[] contextTokens) {
+        return compile().probabilities(contextTokens);
+    }
+
+    /**
+     * Classify a batch of contexts in parallel
+     * @return the probabilities of every category for each context, in order
+     */
+    public double[][] getProbabilities(List<String[]> contexts) {
+        return compile().probabilities(contexts);
+    }
+
+    /**
+     * Classify a stream of contexts, reading it in batches that are each classified in parallel
+     * @return a stream of the probabilities of every category for each context, in order
+     */
+    public Stream<double[]> getProbabilities(Stream<String[]> contexts) {
+        return compile().probabilities(contexts);
+    }
+
+    /**
+     * Get the compiled inverted-index form of this classifier, building it if necessary
+     */
+    public TfidfIndex compile() {
+        TfidfIndex index = this.index;
+        if (index == null) {
+            synchronized (this) {
+                index = this.index;
+                if (index == null) {
+                    refresh();
+                    long start = System.currentTimeMillis();
+                    index = new TfidfIndex(space, idfVector, vectors);
+                    this.index = index;
+                    LOGGER.info("Compiled " + index.categories() + " categories into " + index.postingCount()
+                            + " postings in " + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
+        }
+        return index;
     }
 
     public CooccVector getTfidfVector(String[] contextTokens, double[] weights) {
+        refresh();
         CooccVector vector = new CooccVector(space);
         for (int i=0; i<contextTokens.length; i++) {
             vector.increment(contextTokens[i], weights[i]);
@@ -67,6 +184,7 @@ public class TfidfVectorClassifier {
     }
 
     public CooccVector getTfidfVector(String[] contextTokens) {
+        refresh();
         CooccVector vector = new CooccVector(space);
         for (String tok : contextTokens) {
             vector.increment(tok, 1.);
@@ -75,7 +193,95 @@ public class TfidfVectorClassifier {
         return vector;
     }
 
-    public void serialize(OutputStream out) throws IOException {
+    // BINARY FORMAT (version 2), little-endian, every section starting on an 8-byte boundary so it can be mapped:
+    //   header: magic "GREGTFI\0", int version, int flags (1 = hashed space), int space size, int categories,
+    //           long vocabulary bytes, long total entries, long file length including the trailer
+    //   vocabulary: for each word, int byte length and then the word in UTF-8 (empty for a hashed space);
+    //               version 1 instead ended each word with a newline, which words themselves can't contain
+    //   int entry count of the overall term counts and then of each category's counts
+    //   for each of those vectors: int indices (sorted), then double values
+    //   trailer: long CRC32 of everything before it
+
+    private static final byte[] MAGIC = "GREGTFI\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 48;
+    private static final int FLAG_HASHED = 1;
+
+    /**
+     * Write the raw counts in the checksummed binary format. Read them back with deserialize or load.
+     */
+    public synchronized void serialize(OutputStream out) throws IOException {
+        List<CooccVector> all = new ArrayList<>(counts.size() + 1);
+        all.add(termCounts);
+        all.addAll(counts);
+        int[][] indices = new int[all.size()][];
+        double[][] values = new double[all.size()][];
+        long entries = 0;
+        for (int v = 0; v < all.size(); v++) {
+            CooccVector vector = all.get(v).freeze();
+            indices[v] = vector.indices();
+            values[v] = new double[indices[v].length];
+            for (int i = 0; i < indices[v].length; i++) {
+                values[v][i] = vector.get(indices[v][i]);
+            }
+            entries += indices[v].length;
+        }
+        byte[] vocabulary = new byte[0];
+        if (!space.isHashed()) {
+            ByteArrayOutputStream words = new ByteArrayOutputStream();
+            byte[] wordLength = new byte[4];
+            for (int i = 0; i < space.size(); i++) {
+                byte[] word = space.getWord(i).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer.wrap(wordLength).order(ByteOrder.LITTLE_ENDIAN).putInt(word.length);
+                words.write(wordLength);
+                words.write(word);
+            }
+            vocabulary = words.toByteArray();
+        }
+        long length = HEADER_BYTES + padded(vocabulary.length) + padded(4L * all.size());
+        for (int[] vectorIndices : indices) {
+            length += padded(4L * vectorIndices.length) + 8L * vectorIndices.length;
+        }
+        length += 8;
+
+        CRC32 crc = new CRC32();
+        ChunkWriter writer = new ChunkWriter(new CheckedOutputStream(out, crc));
+        writer.buffer.put(MAGIC).putInt(VERSION).putInt(space.isHashed() ? FLAG_HASHED : 0).putInt(space.size())
+                .putInt(counts.size()).putLong(vocabulary.length).putLong(entries).putLong(length);
+        writer.write(vocabulary);
+        writer.pad();
+        int[] sizes = new int[all.size()];
+        for (int v = 0; v < sizes.length; v++) {
+            sizes[v] = indices[v].length;
+        }
+        writer.write(sizes);
+        writer.pad();
+        for (int v = 0; v < all.size(); v++) {
+            writer.write(indices[v]);
+            writer.pad();
+            writer.write(values[v]);
+        }
+        writer.flush();
+        writer.buffer.putLong(crc.getValue());
+        writer.flush();
+        out.flush();
+    }
+
+    /**
+     * Write the classifier to a file in the checksummed binary format
+     */
+    public void save(String filename) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) {
+            serialize(out);
+        }
+    }
+
+    /**
+     * Write the weighted vectors in the format used before the binary format existed, for older readers.
+     * Counts are not written, but can be recovered from the weights (see deserialize).
+     */
+    public void serializeLegacy(OutputStream out) throws IOException {
+        refresh();
         space.serialize(out);
         idfVector.serialize(out);
         byte[] nCategories = ByteBuffer.allocate(4).putInt(vectors.size()).array();
@@ -85,20 +291,226 @@ public class TfidfVectorClassifier {
         }
     }
 
+    /**
+     * Read a classifier in either the binary format or the legacy format, reading nothing past its end
+     */
     public static TfidfVectorClassifier deserialize(InputStream in) throws IOException {
         LOGGER.info("Deserializing TF-IDF vector classifier from stream " + in);
+        PushbackInputStream pushback = new PushbackInputStream(in, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = 0;
+        while (read < magic.length) {
+            int n = pushback.read(magic, read, magic.length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        pushback.unread(magic, 0, read);
+        TfidfVectorClassifier tvc;
+        if (read == magic.length && Arrays.equals(magic, MAGIC)) {
+            DataInputStream data = new DataInputStream(pushback);
+            byte[] header = new byte[HEADER_BYTES];
+            data.readFully(header);
+            long length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getLong(40);
+            if (length < HEADER_BYTES + 8 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad TF-IDF classifier length " + length);
+            }
+            byte[] contents = Arrays.copyOf(header, (int) length);
+            data.readFully(contents, HEADER_BYTES, contents.length - HEADER_BYTES);
+            tvc = read(ByteBuffer.wrap(contents));
+        } else {
+            tvc = deserializeLegacy(pushback);
+        }
+        LOGGER.info("Done deserializing TF-IDF vector classifier.");
+        return tvc;
+    }
+
+    /**
+     * Map and read a classifier file in the binary format
+     */
+    public static TfidfVectorClassifier load(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException(filename + " is too large");
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static TfidfVectorClassifier read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES + 8) throw new IOException("Truncated TF-IDF classifier");
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a TF-IDF classifier");
+        int version = buffer.getInt();
+        if (version != VERSION && version != 1) throw new IOException("Unsupported TF-IDF classifier version " + version);
+        int flags = buffer.getInt();
+        int size = buffer.getInt();
+        int categories = buffer.getInt();
+        long vocabularyBytes = buffer.getLong();
+        buffer.getLong();
+        long length = buffer.getLong();
+        if (length != buffer.capacity()) {
+            throw new IOException("TF-IDF classifier should be " + length + " bytes, but is " + buffer.capacity());
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer checked = buffer.duplicate();
+        ((Buffer) checked).position(0).limit((int) length - 8);
+        crc.update(checked);
+        if (crc.getValue() != buffer.getLong((int) length - 8)) {
+            throw new IOException("TF-IDF classifier checksum doesn't match");
+        }
+
+        TfidfVectorClassifier tvc = new TfidfVectorClassifier();
+        if ((flags & FLAG_HASHED) != 0) {
+            tvc.space = CooccVectorSpace.hashed(size);
+        } else {
+            tvc.space = new CooccVectorSpace();
+            if (vocabularyBytes < 0 || vocabularyBytes > buffer.remaining()) {
+                throw new IOException("Bad TF-IDF classifier vocabulary length " + vocabularyBytes);
+            }
+            byte[] vocabulary = new byte[(int) vocabularyBytes];
+            buffer.get(vocabulary);
+            if (version == 1) {
+                readNewlineWords(vocabulary, tvc.space);
+            } else {
+                readWords(vocabulary, tvc.space);
+            }
+            if (tvc.space.size() != size) {
+                throw new IOException("Expected " + size + " words, but read " + tvc.space.size());
+            }
+        }
+        align(buffer);
+        int[] sizes = new int[categories + 1];
+        buffer.asIntBuffer().get(sizes);
+        ((Buffer) buffer).position(buffer.position() + 4 * sizes.length);
+        align(buffer);
+        List<CooccVector> vectors = new ArrayList<>(sizes.length);
+        for (int entries : sizes) {
+            int[] indices = new int[entries];
+            double[] values = new double[entries];
+            buffer.asIntBuffer().get(indices);
+            ((Buffer) buffer).position(buffer.position() + 4 * entries);
+            align(buffer);
+            buffer.asDoubleBuffer().get(values);
+            ((Buffer) buffer).position(buffer.position() + 8 * entries);
+            vectors.add(new CooccVector(tvc.space, indices, values));
+        }
+        tvc.termCounts = vectors.get(0);
+        tvc.counts = new ArrayList<>(vectors.subList(1, vectors.size()));
+        // weights are derived on first use
+        tvc.stale = true;
+        return tvc;
+    }
+
+    /**
+     * Add words each preceded by their int byte length, as written by version 2 and later
+     */
+    private static void readWords(byte[] vocabulary, CooccVectorSpace space) throws IOException {
+        ByteBuffer words = ByteBuffer.wrap(vocabulary).order(ByteOrder.LITTLE_ENDIAN);
+        while (words.hasRemaining()) {
+            if (words.remaining() < 4) throw new IOException("TF-IDF classifier vocabulary is truncated");
+            int length = words.getInt();
+            if (length < 0 || length > words.remaining()) {
+                throw new IOException("Bad TF-IDF classifier word length " + length);
+            }
+            space.addWord(new String(vocabulary, words.position(), length, StandardCharsets.UTF_8));
+            ((Buffer) words).position(words.position() + length);
+        }
+    }
+
+    /**
+     * Add words each followed by a newline, as written by version 1
+     */
+    private static void readNewlineWords(byte[] vocabulary, CooccVectorSpace space) {
+        int begin = 0;
+        for (int i = 0; i < vocabulary.length; i++) {
+            if (vocabulary[i] == '\n') {
+                space.addWord(new String(vocabulary, begin, i - begin, StandardCharsets.UTF_8));
+                begin = i + 1;
+            }
+        }
+    }
+
+    private static TfidfVectorClassifier deserializeLegacy(InputStream in) throws IOException {
         TfidfVectorClassifier tvc = new TfidfVectorClassifier();
         tvc.space = CooccVectorSpace.deserialize(in);
         tvc.idfVector = CooccVector.deserialize(in, tvc.space);
         tvc.vectors = new ArrayList<>();
-        byte[] nCatBytes = new byte[4];
-        in.read(nCatBytes);
-        int nCategories = ByteBuffer.wrap(nCatBytes).getInt();
+        int nCategories = new DataInputStream(in).readInt();
         for (int i=0; i<nCategories; i++) {
             tvc.vectors.add(CooccVector.deserialize(in, tvc.space));
         }
-        LOGGER.info("Done deserializing TF-IDF vector classifier.");
+        // every training token counted 1, so raw counts are the whole numbers that the weights were derived from
+        tvc.termCounts = new CooccVector(tvc.idfVector);
+        tvc.termCounts.applyElementwise(x -> (double) Math.round(1 / x));
+        tvc.counts = new ArrayList<>(nCategories);
+        for (CooccVector vector : tvc.vectors) {
+            CooccVector count = new CooccVector(vector);
+            count.hadamard(tvc.termCounts);
+            count.applyElementwise(x -> (double) Math.round(x));
+            tvc.counts.add(count);
+        }
         return tvc;
     }
 
+    private static long padded(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static void align(ByteBuffer buffer) {
+        ((Buffer) buffer).position((int) padded(buffer.position()));
+    }
+
+    /**
+     * Writes primitive arrays to a stream through one reusable little-endian buffer, keeping track of the position
+     */
+    private static class ChunkWriter {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final OutputStream out;
+        private long written;
+
+        ChunkWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            flush();
+            out.write(bytes);
+            written += bytes.length;
+        }
+
+        void write(int[] array) throws IOException {
+            for (int i = 0; i < array.length; ) {
+                if (buffer.remaining() < 4) flush();
+                int n = Math.min(array.length - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(array, i, n);
+                ((Buffer) buffer).position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void write(double[] array) throws IOException {
+            for (int i = 0; i < array.length; ) {
+                if (buffer.remaining() < 8) flush();
+                int n = Math.min(array.length - i, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(array, i, n);
+                ((Buffer) buffer).position(buffer.position() + 8 * n);
+                i += n;
+            }
+        }
+
+        void pad() throws IOException {
+            long position = written + buffer.position();
+            for (long i = position; i < padded(position); i++) {
+                if (!buffer.hasRemaining()) flush();
+                buffer.put((byte) 0);
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            written += buffer.position();
+            ((Buffer) buffer).clear();
+        }
+    }
+
 }
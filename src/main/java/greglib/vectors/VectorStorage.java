@@ -0,0 +1,166 @@
+package greglib.vectors;
+
+import greglib.util.TopKHeap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Row-addressed storage for the vectors held by an Embeddings object.
+ * Embeddings only deals in row indices; implementations decide where and how the floats actually live.
+ * Storage holding resources outside the heap (open files, native memory) releases them on close().
+ */
+public abstract class VectorStorage implements Closeable {
+
+    public abstract int dimensionality();
+
+    /**
+     * @return the number of rows (vectors) held
+     */
+    public abstract int size();
+
+    public abstract float get(int row, int col);
+
+    /**
+     * Copy a single row into an array
+     * @param row the row to copy
+     * @param dest destination array, with room for dimensionality() floats after destOffset
+     * @param destOffset where in dest to start writing
+     */
+    public abstract void copyRow(int row, float[] dest, int destOffset);
+
+    /**
+     * Dot product of a row with a query vector
+     * @param row the row to score
+     * @param query array holding the query vector
+     * @param offset where in the array the query vector starts
+     * @return the dot product
+     */
+    public abstract double dot(int row, float[] query, int offset);
+
+    /**
+     * Dot products of a row with several query vectors packed back to back
+     * @param row the row to score
+     * @param queries array holding the query vectors, dimensionality() floats each
+     * @param offset where in the array the first query vector starts
+     * @param nQueries how many query vectors to score
+     * @param scores array to hold the nQueries results
+     */
+    public void dots(int row, float[] queries, int offset, int nQueries, double[] scores) {
+        int dim = dimensionality();
+        for (int q = 0; q < nQueries; q++) {
+            scores[q] = dot(row, queries, offset + q * dim);
+        }
+    }
+
+    /**
+     * Score a range of rows against a query, offering each to a heap. Implementations with a cheaper way to score
+     * many rows against one query than calling dot() for each (such as quantized storage) override this.
+     * @param query array holding the query vector
+     * @param offset where in the array the query vector starts
+     * @param begin first row to score
+     * @param end one past the last row to score
+     * @param heap heap to offer every row to
+     */
+    public void scan(float[] query, int offset, int begin, int end, TopKHeap heap) {
+        for (int i = begin; i < end; i++) {
+            heap.offer(i, dot(i, query, offset));
+        }
+    }
+
+    /**
+     * @return true if scan() is much faster than scoring rows one at a time, in which case batches of queries are
+     * better answered by a scan per query than by blocked scoring with dots()
+     */
+    public boolean scansIndividually() {
+        return false;
+    }
+
+    /**
+     * How many candidates a scan should keep in order to return k results. Storage whose scores are approximate
+     * keeps extra candidates for rerank to rescore exactly.
+     */
+    public int candidates(int k) {
+        return k;
+    }
+
+    /**
+     * Rescore the candidates kept by a scan, if this storage's scan scores are approximate
+     * @param candidates the candidates kept by the scan
+     * @param query array holding the query vector
+     * @param offset where in the array the query vector starts
+     * @param k how many results to keep
+     * @return the best k candidates (by default, the candidates as they are)
+     */
+    public TopKHeap rerank(TopKHeap candidates, float[] query, int offset, int k) {
+        return candidates;
+    }
+
+    /**
+     * Get a WordEmbedding for this row. Storage that holds its floats in heap arrays hands out views that write
+     * through to the storage; other implementations may return a detached copy.
+     * @param row the row to get
+     * @return a WordEmbedding of this row
+     */
+    public abstract WordEmbedding getEmbedding(int row);
+
+    /**
+     * Get a row as a FloatBuffer. Implementations avoid copying where they can; by default this is a copy.
+     * @param row the row to get
+     * @return a buffer positioned at the start of the row, with dimensionality() floats remaining
+     */
+    public FloatBuffer getBuffer(int row) {
+        float[] vector = new float[dimensionality()];
+        copyRow(row, vector, 0);
+        return FloatBuffer.wrap(vector);
+    }
+
+    /**
+     * @return true if add() can append rows to this storage
+     */
+    public boolean supportsAdd() {
+        return false;
+    }
+
+    /**
+     * Append a vector as a new row (optional operation; see supportsAdd)
+     * @param vector array holding the vector
+     * @param offset where in the array the vector starts
+     * @return the index of the new row
+     */
+    public int add(float[] vector, int offset) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support adding vectors");
+    }
+
+    /**
+     * Scale every row to unit length
+     */
+    public void normalizeRows() {
+        for (int i = 0; i < size(); i++) {
+            getEmbedding(i).normalize();
+        }
+    }
+
+    /**
+     * Copy a subset of rows into a new heap-backed storage
+     * @param rows the rows to keep, in their new order
+     * @return a new storage holding only those rows
+     */
+    public VectorStorage select(int[] rows) {
+        ArrayVectorStorage selected = new ArrayVectorStorage(dimensionality(), rows.length);
+        float[] buffer = new float[dimensionality()];
+        for (int row : rows) {
+            copyRow(row, buffer, 0);
+            selected.add(buffer, 0);
+        }
+        return selected;
+    }
+
+    /**
+     * Release anything held outside the heap; the storage can't be used afterward. Heap storage has nothing to release.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,580 @@
+package greglib.vectors;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Two-way map between terms and row indices that holds no object per term, for vocabularies of millions of words.
+ *
+ * Terms are kept as UTF-8 in a sorted, front-coded table: blocks of 16 terms, each term stored as the length of the
+ * prefix it shares with the term before it plus the bytes that follow. The first term of every block is stored whole,
+ * so a lookup binary-searches the block heads and then scans at most one block. Two int arrays map sorted positions
+ * to rows and back. Terms added after the table is built are held in a small hash map until there are enough of them
+ * to merge into a new table.
+ *
+ * Lookups may be made from several threads at once; adding terms may not overlap with anything else.
+ */
+public class Vocabulary implements Iterable<String> {
+
+    // terms per front-coded block
+    private static final int BLOCK = 16;
+    // terms added since the table was built are merged in once they outnumber this, or a quarter of the table
+    private static final int MIN_MERGE = 1024;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    // the front-coded table
+    private int tableSize;
+    private byte[] data;
+    private int[] blockStarts;
+    // the first 8 bytes of each block's first term, packed big-endian so they compare as unsigned longs
+    private long[] headKeys;
+    private int[] sortedToRow;
+    private int[] rowToSorted;
+    private int maxTermBytes;
+
+    // terms added since the table was built, at rows tableSize and up
+    private Map<String, Integer> added = new HashMap<>();
+    private List<String> addedTerms = new ArrayList<>();
+
+    // a cursor per thread for getTerm, replaced when the table is rebuilt
+    private final ThreadLocal<Cursor> cursors = new ThreadLocal<>();
+
+    /**
+     * Create an empty vocabulary
+     */
+    public Vocabulary() {
+        this(new TableBuilder(0));
+    }
+
+    private Vocabulary(TableBuilder table) {
+        tableSize = table.count;
+        data = Arrays.copyOf(table.data, table.dataLength);
+        blockStarts = Arrays.copyOf(table.blockStarts, (tableSize + BLOCK - 1) / BLOCK + 1);
+        blockStarts[blockStarts.length - 1] = table.dataLength;
+        headKeys = new long[blockStarts.length - 1];
+        for (int b = 0; b < headKeys.length; b++) {
+            long length = varint(data, blockStarts[b] + 1);
+            headKeys[b] = pack(data, (int) length, (int) (length >>> 32));
+        }
+        sortedToRow = table.sortedToRow.length == tableSize
+                ? table.sortedToRow : Arrays.copyOf(table.sortedToRow, tableSize);
+        rowToSorted = invert(sortedToRow);
+        maxTermBytes = table.maxTermBytes;
+    }
+
+    /**
+     * Build a vocabulary of terms in row order
+     * @param terms the term for each row; no duplicates
+     * @return the vocabulary
+     * @throws IllegalArgumentException if a term appears twice
+     */
+    public static Vocabulary of(List<String> terms) {
+        int n = terms.size();
+        byte[][] bytes = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            bytes[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (x, y) -> compare(bytes[x], 0, bytes[x].length, bytes[y], bytes[y].length));
+        TableBuilder table = new TableBuilder(n);
+        for (int i = 0; i < n; i++) {
+            byte[] term = bytes[sorted[i]];
+            if (i > 0 && table.equalsPrevious(term, term.length)) {
+                throw new IllegalArgumentException("Duplicate term " + terms.get(sorted[i]));
+            }
+            table.add(term, term.length, sorted[i]);
+        }
+        return new Vocabulary(table);
+    }
+
+    public int size() {
+        return tableSize + addedTerms.size();
+    }
+
+    /**
+     * @return the row of a term, or -1 if it isn't in the vocabulary
+     */
+    public int getIndex(String term) {
+        if (tableSize > 0) {
+            byte[] key = term.getBytes(StandardCharsets.UTF_8);
+            if (key.length <= maxTermBytes) {
+                int sorted = find(key);
+                if (sorted >= 0) return sortedToRow[sorted];
+            }
+        }
+        if (addedTerms.isEmpty()) return -1;
+        Integer row = added.get(term);
+        return row == null ? -1 : row;
+    }
+
+    public boolean contains(String term) {
+        return getIndex(term) >= 0;
+    }
+
+    /**
+     * @return the term at a row
+     */
+    public String getTerm(int row) {
+        if (row < 0 || row >= size()) throw new IndexOutOfBoundsException("Index " + row + " of " + size());
+        if (row >= tableSize) return addedTerms.get(row - tableSize);
+        int sorted = rowToSorted[row];
+        Cursor cursor = cursors.get();
+        if (cursor == null || cursor.data != data) {
+            cursor = new Cursor();
+            cursors.set(cursor);
+        }
+        cursor.seek(sorted / BLOCK);
+        for (int i = sorted % BLOCK; i >= 0; i--) {
+            cursor.next();
+        }
+        return cursor.toString();
+    }
+
+    /**
+     * Add a term at the next row, unless it is already present
+     * @return the row of the new term, or -1 if it was already present (and nothing was added)
+     */
+    public int add(String term) {
+        if (contains(term)) return -1;
+        int row = size();
+        added.put(term, row);
+        addedTerms.add(term);
+        if (addedTerms.size() > Math.max(MIN_MERGE, tableSize / 4)) {
+            freeze();
+        }
+        return row;
+    }
+
+    /**
+     * Merge any terms added since the table was built into a new table
+     */
+    public void freeze() {
+        if (addedTerms.isEmpty()) return;
+        int nAdded = addedTerms.size();
+        byte[][] bytes = new byte[nAdded][];
+        for (int i = 0; i < nAdded; i++) {
+            bytes[i] = addedTerms.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        Integer[] order = new Integer[nAdded];
+        for (int i = 0; i < nAdded; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> compare(bytes[x], 0, bytes[x].length, bytes[y], bytes[y].length));
+
+        // merge the sorted table with the sorted additions
+        TableBuilder table = new TableBuilder(size());
+        Cursor cursor = new Cursor();
+        int sorted = 0;
+        boolean more = tableSize > 0 && cursor.next();
+        for (int a = 0; a < nAdded || more; ) {
+            byte[] next = a < nAdded ? bytes[order[a]] : null;
+            if (more && (next == null || compare(cursor.term, 0, cursor.length, next, next.length) < 0)) {
+                table.add(cursor.term, cursor.length, sortedToRow[sorted++]);
+                more = sorted < tableSize && cursor.next();
+            } else {
+                table.add(next, next.length, tableSize + order[a]);
+                a++;
+            }
+        }
+        replaceWith(new Vocabulary(table));
+    }
+
+    /**
+     * Keep a subset of rows, renumbered in the order given
+     * @param rows the rows to keep
+     * @param count how many entries of rows to use
+     * @return a new vocabulary of the kept terms
+     */
+    public Vocabulary select(int[] rows, int count) {
+        freeze();
+        int[] newRows = new int[tableSize];
+        Arrays.fill(newRows, -1);
+        for (int i = 0; i < count; i++) {
+            newRows[rows[i]] = i;
+        }
+        TableBuilder table = new TableBuilder(count);
+        Cursor cursor = new Cursor();
+        for (int sorted = 0; sorted < tableSize; sorted++) {
+            cursor.next();
+            int row = newRows[sortedToRow[sorted]];
+            if (row >= 0) table.add(cursor.term, cursor.length, row);
+        }
+        return new Vocabulary(table);
+    }
+
+    /**
+     * Terms in row order
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return getTerm(next++);
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes write() will produce (after merging any added terms)
+     */
+    public long serializedBytes() {
+        freeze();
+        return 12 + 4L * blockStarts.length + 4L * tableSize + data.length;
+    }
+
+    /**
+     * Write the table, merging in any added terms first.
+     * LAYOUT (little-endian): int number of terms, int longest term in bytes, int data length,
+     * int[blocks + 1] byte offset of each block in the data, int[n] row of each sorted term, then the data
+     * @param channel where to write
+     * @throws IOException
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        freeze();
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(tableSize);
+        buffer.putInt(maxTermBytes);
+        buffer.putInt(data.length);
+        for (int start : blockStarts) {
+            if (buffer.remaining() < 4) drain(channel, buffer);
+            buffer.putInt(start);
+        }
+        for (int row : sortedToRow) {
+            if (buffer.remaining() < 4) drain(channel, buffer);
+            buffer.putInt(row);
+        }
+        for (int written = 0; written < data.length; ) {
+            if (!buffer.hasRemaining()) drain(channel, buffer);
+            int chunk = Math.min(buffer.remaining(), data.length - written);
+            buffer.put(data, written, chunk);
+            written += chunk;
+        }
+        drain(channel, buffer);
+    }
+
+    /**
+     * Read a table written by write(), starting at the buffer's position and leaving the position after it
+     * @param buffer the buffer to read from (its byte order doesn't matter)
+     * @return the vocabulary
+     * @throws IOException if the table is malformed
+     */
+    public static Vocabulary read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        TableBuilder table = new TableBuilder(0);
+        int n = in.getInt();
+        int maxTermBytes = in.getInt();
+        int dataLength = in.getInt();
+        int nBlocks = (n + BLOCK - 1) / BLOCK;
+        if (n < 0 || maxTermBytes < 0 || dataLength < 0 || in.remaining() < 4L * (nBlocks + 1 + n) + dataLength) {
+            throw new IOException("Vocabulary table is truncated or corrupt");
+        }
+        int[] blockStarts = new int[nBlocks + 1];
+        in.asIntBuffer().get(blockStarts);
+        ((Buffer) in).position(in.position() + 4 * blockStarts.length);
+        int[] sortedToRow = new int[n];
+        in.asIntBuffer().get(sortedToRow);
+        ((Buffer) in).position(in.position() + 4 * n);
+        byte[] data = new byte[dataLength];
+        in.get(data);
+        for (int b = 0; b < nBlocks; b++) {
+            if (blockStarts[b] < 0 || blockStarts[b] > blockStarts[b + 1]) {
+                throw new IOException("Vocabulary table is corrupt");
+            }
+        }
+        if (blockStarts[nBlocks] != dataLength) throw new IOException("Vocabulary table is corrupt");
+        table.count = n;
+        table.data = data;
+        table.dataLength = dataLength;
+        table.blockStarts = blockStarts;
+        table.sortedToRow = sortedToRow;
+        table.maxTermBytes = maxTermBytes;
+        Vocabulary vocabulary;
+        try {
+            vocabulary = new Vocabulary(table);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Vocabulary table is corrupt", e);
+        }
+        ((Buffer) buffer).position(buffer.position() + in.position());
+        return vocabulary;
+    }
+
+    private void replaceWith(Vocabulary other) {
+        tableSize = other.tableSize;
+        data = other.data;
+        blockStarts = other.blockStarts;
+        headKeys = other.headKeys;
+        sortedToRow = other.sortedToRow;
+        rowToSorted = other.rowToSorted;
+        maxTermBytes = other.maxTermBytes;
+        added = new HashMap<>();
+        addedTerms = new ArrayList<>();
+    }
+
+    /**
+     * @return the sorted position of a term in the table, or -1
+     */
+    private int find(byte[] key) {
+        byte[] data = this.data;
+        // the last block whose first term is no greater than the key, and how much of the key that term matches
+        int block = -1;
+        int matched = 0;
+        int lo = 0;
+        int hi = headKeys.length - 1;
+        long packedKey = pack(key, 0, key.length);
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int packedComp = Long.compareUnsigned(headKeys[mid], packedKey);
+            if (packedComp != 0) {
+                // the head differs from the key within the first 8 bytes; the block's length is only needed for
+                // the block that is finally picked
+                if (packedComp < 0) {
+                    block = mid;
+                    matched = -1;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+                continue;
+            }
+            // a block's first term is stored whole: a zero prefix length, then its length and bytes
+            long length = varint(data, blockStarts[mid] + 1);
+            int start = (int) length;
+            int headLength = (int) (length >>> 32);
+            int common = commonPrefix(data, start, headLength, key, 0);
+            int comp = common == Math.min(headLength, key.length)
+                    ? headLength - key.length
+                    : (data[start + common] & 0xff) - (key[common] & 0xff);
+            if (comp == 0) return mid * BLOCK;
+            if (comp < 0) {
+                block = mid;
+                matched = common;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) return -1;
+
+        // Walk the rest of the block without decoding it. Every term so far is less than the key and matches the
+        // first "matched" bytes of it. A term sharing more than that with the previous term is also less than the key;
+        // one sharing less is greater than the key, as is everything after it.
+        long length = varint(data, blockStarts[block] + 1);
+        int position = (int) length + (int) (length >>> 32);
+        if (matched < 0) {
+            matched = commonPrefix(data, (int) length, (int) (length >>> 32), key, 0);
+        }
+        int end = Math.min(tableSize, (block + 1) * BLOCK);
+        for (int sorted = block * BLOCK + 1; sorted < end; sorted++) {
+            long prefix = varint(data, position);
+            long suffix = varint(data, (int) prefix);
+            int shared = (int) (prefix >>> 32);
+            int suffixLength = (int) (suffix >>> 32);
+            position = (int) suffix;
+            if (shared < matched) return -1;
+            if (shared == matched) {
+                int common = commonPrefix(data, position, suffixLength, key, shared);
+                matched = shared + common;
+                if (common == suffixLength) {
+                    if (matched == key.length) return sorted;
+                } else if (matched == key.length || (data[position + common] & 0xff) > (key[matched] & 0xff)) {
+                    return -1;
+                }
+            }
+            position += suffixLength;
+        }
+        return -1;
+    }
+
+    /**
+     * The first 8 bytes of a string, big-endian and padded with zeros
+     */
+    private static long pack(byte[] bytes, int start, int length) {
+        long packed = 0;
+        for (int i = 0; i < 8; i++) {
+            packed = packed << 8 | (i < length ? bytes[start + i] & 0xff : 0);
+        }
+        return packed;
+    }
+
+    /**
+     * How many bytes of data starting at start (up to length) equal the key starting at keyStart
+     */
+    private static int commonPrefix(byte[] data, int start, int length, byte[] key, int keyStart) {
+        int max = Math.min(length, key.length - keyStart);
+        int i = 0;
+        while (i < max && data[start + i] == key[keyStart + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Read a varint
+     * @return the value in the high 32 bits, and the position after it in the low 32 bits
+     */
+    private static long varint(byte[] data, int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[position++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return (long) value << 32 | position;
+        }
+    }
+
+    private static int[] invert(int[] sortedToRow) {
+        int[] rowToSorted = new int[sortedToRow.length];
+        Arrays.fill(rowToSorted, -1);
+        for (int sorted = 0; sorted < sortedToRow.length; sorted++) {
+            int row = sortedToRow[sorted];
+            if (row < 0 || row >= rowToSorted.length || rowToSorted[row] >= 0) {
+                throw new IllegalArgumentException("Rows are not a permutation");
+            }
+            rowToSorted[row] = sorted;
+        }
+        return rowToSorted;
+    }
+
+    /**
+     * Compare UTF-8 byte strings as unsigned bytes (the same order as comparing code points)
+     */
+    private static int compare(byte[] a, int aStart, int aLength, byte[] b, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int comp = (a[aStart + i] & 0xff) - (b[i] & 0xff);
+            if (comp != 0) return comp;
+        }
+        return aLength - bLength;
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    /**
+     * Decodes terms from the table in sorted order, starting at a block
+     */
+    private final class Cursor {
+        final byte[] data = Vocabulary.this.data;
+        final byte[] term = new byte[maxTermBytes];
+        int length;
+        int position;
+
+        void seek(int block) {
+            position = blockStarts[block];
+            length = 0;
+        }
+
+        /**
+         * Decode the next term into term[0, length)
+         * @return true (for use in conditions)
+         */
+        boolean next() {
+            long prefix = varint(data, position);
+            long suffix = varint(data, (int) prefix);
+            int suffixLength = (int) (suffix >>> 32);
+            position = (int) suffix;
+            System.arraycopy(data, position, term, (int) (prefix >>> 32), suffixLength);
+            position += suffixLength;
+            length = (int) (prefix >>> 32) + suffixLength;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(term, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Front-codes terms given in sorted order
+     */
+    private static final class TableBuilder {
+        int count;
+        byte[] data;
+        int dataLength;
+        int[] blockStarts;
+        int[] sortedToRow;
+        int maxTermBytes;
+        private byte[] previous = new byte[16];
+        private int previousLength;
+
+        TableBuilder(int capacity) {
+            data = new byte[Math.max(16, capacity * 8)];
+            blockStarts = new int[(capacity + BLOCK - 1) / BLOCK + 1];
+            sortedToRow = new int[capacity];
+        }
+
+        boolean equalsPrevious(byte[] term, int length) {
+            return compare(previous, 0, previousLength, term, length) == 0;
+        }
+
+        void add(byte[] term, int length, int row) {
+            int prefix = 0;
+            if (count % BLOCK == 0) {
+                if (count / BLOCK >= blockStarts.length - 1) {
+                    blockStarts = Arrays.copyOf(blockStarts, blockStarts.length * 2 + 2);
+                }
+                blockStarts[count / BLOCK] = dataLength;
+            } else {
+                int max = Math.min(previousLength, length);
+                while (prefix < max && previous[prefix] == term[prefix]) {
+                    prefix++;
+                }
+            }
+            int suffix = length - prefix;
+            if (dataLength + suffix + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + suffix + 10));
+            }
+            writeVarint(prefix);
+            writeVarint(suffix);
+            System.arraycopy(term, prefix, data, dataLength, suffix);
+            dataLength += suffix;
+
+            if (length > previous.length) {
+                previous = Arrays.copyOf(previous, Math.max(length, previous.length * 2));
+            }
+            System.arraycopy(term, prefix, previous, prefix, suffix);
+            previousLength = length;
+            maxTermBytes = Math.max(maxTermBytes, length);
+            if (count == sortedToRow.length) {
+                sortedToRow = Arrays.copyOf(sortedToRow, Math.max(16, count * 2));
+            }
+            sortedToRow[count++] = row;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                data[dataLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[dataLength++] = (byte) value;
+        }
+    }
+}
@@ -8,11 +8,17 @@ import java.util.Arrays;
 
 /**
  * Class for representing dense word embeddings and performing computations on them.
+ * May be a view onto a slice of a larger array (see ArrayVectorStorage), in which case changes write through.
  * Created by gpfinley on 3/14/16.
  */
 public class WordEmbedding implements Serializable {
 
+    // pinned to the value computed for the original layout, so previously serialized objects still load
+    private static final long serialVersionUID = 5132867605353102983L;
+
     private float[] vector;
+    private int offset;
+    private int length;
 
     public WordEmbedding(int dimensionality) {
         this(new float[dimensionality]);
@@ -20,50 +26,68 @@ public class WordEmbedding implements Serializable {
 
     public WordEmbedding(float[] vector) {
         this.vector = Arrays.copyOf(vector, vector.length);
+        this.length = vector.length;
     }
 
     public WordEmbedding(WordEmbedding orig) {
         vector = new float[orig.size()];
+        length = vector.length;
         for(int i=0; i < vector.length; i++) {
             vector[i] = (float)orig.get(i);
         }
     }
 
+    private WordEmbedding(float[] backing, int offset, int length) {
+        this.vector = backing;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Create an embedding that reads and writes a slice of an existing array without copying it
+     */
+    static WordEmbedding view(float[] backing, int offset, int length) {
+        return new WordEmbedding(backing, offset, length);
+    }
+
+    /**
+     * The array backing this embedding; the vector starts at offset()
+     */
+    float[] array() {
+        return vector;
+    }
+
+    int offset() {
+        return offset;
+    }
+
     public double get(int i) {
-        return (double)vector[i];
+        return (double)vector[offset + i];
     }
 
     public int size() {
-        return vector.length;
+        return length;
     }
 
     public void normalize() {
         double mag = mag();
         if(mag == 0) return;
-        for(int i=0; i<vector.length; i++) {
+        for(int i=offset; i<offset+length; i++) {
             vector[i] /= mag;
         }
     }
 
     public double mag() {
-        double sqsum = 0;
-        for(double x : vector) {
-            sqsum += x * x;
-        }
-        return Math.sqrt(sqsum);
+        return Math.sqrt(VectorKernels.squaredNorm(vector, offset, length));
     }
 
     public double dot(WordEmbedding other) {
-        double sum = 0;
-        for(int i=0; i<vector.length; i++) {
-            sum += vector[i] * other.get(i);
-        }
-        return sum;
+        return VectorKernels.dot(vector, offset, other.vector, other.offset, length);
     }
 
     public WordEmbedding sum(WordEmbedding other) {
-        float[] sum = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
+        float[] sum = Arrays.copyOfRange(vector, offset, offset + length);
+        for(int i=0; i<length; i++) {
             sum[i] += other.get(i);
         }
         return new WordEmbedding(sum);
@@ -71,65 +95,68 @@ public class WordEmbedding implements Serializable {
 
     public WordEmbedding hadamard(WordEmbedding other) {
         WordEmbedding prod = new WordEmbedding(this);
-        for(int i=0; i<vector.length; i++) {
-            prod.vector[i] *= other.vector[i];
+        for(int i=0; i<length; i++) {
+            prod.vector[i] *= other.get(i);
         }
         return prod;
     }
 
     public WordEmbedding difference(WordEmbedding other) {
-        float[] diff = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
+        float[] diff = Arrays.copyOfRange(vector, offset, offset + length);
+        for(int i=0; i<length; i++) {
             diff[i] -= other.get(i);
         }
         return new WordEmbedding(diff);
     }
 
     public void add(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] += other.get(i);
+        for(int i=0; i<length; i++) {
+            vector[offset + i] += other.get(i);
         }
     }
 
     public void add(double addend) {
-        for(int i=0; i<vector.length; i++) {
+        for(int i=offset; i<offset+length; i++) {
             vector[i] += addend;
         }
     }
 
     public void subtract(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] -= other.get(i);
+        for(int i=0; i<length; i++) {
+            vector[offset + i] -= other.get(i);
         }
     }
 
     public void scalarMultiply(double s) {
-        for(int i=0; i<vector.length; i++)
+        for(int i=offset; i<offset+length; i++)
             vector[i] *= s;
     }
 
     public double cosSim(WordEmbedding other) {
-        return dot(other) / mag() / other.mag();
+        return VectorKernels.cosine(vector, offset, other.vector, other.offset, length);
     }
 
     public double euclidDist(WordEmbedding other) {
-        double diff = 0;
-        for(int i=0; i<vector.length; i++) {
-            diff += Math.pow(vector[i] - other.get(i), 2);
-        }
-        return Math.sqrt(diff);
+        return Math.sqrt(VectorKernels.squaredDistance(vector, offset, other.vector, other.offset, length));
+    }
+
+    /**
+     * @return a copy of the vector as a standalone array
+     */
+    public float[] toArray() {
+        return Arrays.copyOfRange(vector, offset, offset + length);
     }
 
     @Override
     public String toString() {
-        return Arrays.toString(vector);
+        return Arrays.toString(toArray());
     }
 
     @Override
     public boolean equals(Object other) {
         if(!(other instanceof WordEmbedding)) return false;
-        for(int i=0; i<vector.length; i++) {
-            if(vector[i] != ((WordEmbedding)other).get(i)) {
+        for(int i=0; i<length; i++) {
+            if(vector[offset + i] != ((WordEmbedding)other).get(i)) {
                 return false;
             }
         }
@@ -142,10 +169,12 @@ public class WordEmbedding implements Serializable {
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
-        stream.writeObject(vector);
+        stream.writeObject(offset == 0 && length == vector.length ? vector : toArray());
     }
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
         vector = (float[]) stream.readObject();
+        offset = 0;
+        length = vector.length;
     }
 
 }